@@ -1,22 +1,52 @@
 package org.cyanogenmod.launcher.home.api.cards;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.text.TextUtils;
+import android.util.Log;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 public class DataCard {
+    private static final String TAG = "DataCard";
+    private static final long   NO_TIME = Long.MIN_VALUE;
+
     private static final int PRIORITY_HIGH = 1;
     private static final int PRIORITY_MID  = 2;
     private static final int PRIORITY_LOW  = 3;
 
+    private static final String[] PUBLISHED_COLUMNS = {
+            CmHomeContract.DataCard.SUBJECT_COL,
+            CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL,
+            CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL,
+            CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL,
+            CmHomeContract.DataCard.TITLE_TEXT_COL,
+            CmHomeContract.DataCard.SMALL_TEXT_COL,
+            CmHomeContract.DataCard.BODY_TEXT_COL,
+            CmHomeContract.DataCard.ACTION_1_TEXT_COL,
+            CmHomeContract.DataCard.ACTION_1_URI_COL,
+            CmHomeContract.DataCard.ACTION_2_TEXT_COL,
+            CmHomeContract.DataCard.ACTION_2_URI_COL,
+            CmHomeContract.DataCard.PRIORITY_COL,
+            CmHomeContract.DataCard.EXPIRES_AT_COL};
+
     private int    mId = -1;
     private String mSubject;
     private Date   mContentCreatedDate;
@@ -32,28 +62,196 @@ public class DataCard {
     private String mAction2Text;
     private Uri    mAction2Uri;
     private int    mPriority = 3;
+    private Date   mExpirationDate;
+
+    // Values read from a cursor are kept raw, and only parsed when their getter is called.
+    private long   mContentCreatedTime = NO_TIME;
+    private long   mExpirationTime = NO_TIME;
+    private long   mCreatedTime = NO_TIME;
+    private long   mLastModifiedTime = NO_TIME;
+    private String mContentSourceImageUriString;
+    private String mAvatarImageUriString;
+    private String mAction1UriString;
+    private String mAction2UriString;
 
     private List<DataCardImage> mImages = new ArrayList<DataCardImage>();
+    /**
+     * Published images that were removed from this card and have to be deleted from the
+     * ContentProvider on the next publish.
+     */
+    private List<DataCardImage> mRemovedImages = new ArrayList<DataCardImage>();
+
+    /**
+     * The columns that have changed since this card was last published.
+     */
+    private final Set<String> mDirtyColumns = new HashSet<String>();
+    /**
+     * Incremented whenever a field changes, so that an asynchronous publish can tell whether
+     * the fields it wrote are still current when it completes.
+     */
+    private int mChangeCount;
+
+    // Set on the copies made by copyForPublish(): the card copied, and its change count then.
+    private DataCard mSource;
+    private int      mSourceChangeCount;
+
+    /**
+     * Called on the thread that requested an asynchronous publish, once it completed.
+     */
+    public interface PublishCallback {
+        /**
+         * @param dataCard The card that was published
+         * @param success true if the card was published, false otherwise.
+         */
+        void onPublished(DataCard dataCard, boolean success);
+    }
 
     public DataCard(String subject, Date contentCreatedDate) {
         mSubject = subject;
         mContentCreatedDate = contentCreatedDate;
+        markAllDirty();
+    }
+
+    /**
+     * Creates an empty card, to be filled by {@link DataCardCursorReader}.
+     */
+    DataCard() {
+    }
+
+    /**
+     * Fills this card from the current row of a cursor, replacing all of its state. The card
+     * is considered published, so none of its fields are dirty. Dates and uris are kept as
+     * read and only parsed when their getter is called.
+     */
+    void readFrom(Cursor cursor, DataCardCursorReader reader) {
+        mId = cursor.getInt(reader.mIdIndex);
+        mSubject = reader.getString(cursor, reader.mSubjectIndex);
+        mContentCreatedDate = null;
+        mContentCreatedTime = reader.getLong(cursor, reader.mContentCreatedIndex, NO_TIME);
+        mCreatedDate = null;
+        mCreatedTime = reader.getLong(cursor, reader.mCreatedIndex, NO_TIME);
+        mLastModifiedDate = null;
+        mLastModifiedTime = reader.getLong(cursor, reader.mLastModifiedIndex, NO_TIME);
+        mContentSourceImageUri = null;
+        mContentSourceImageUriString = reader.getString(cursor, reader.mContentSourceImageUriIndex);
+        mAvatarImageUri = null;
+        mAvatarImageUriString = reader.getString(cursor, reader.mAvatarImageUriIndex);
+        mTitle = reader.getString(cursor, reader.mTitleIndex);
+        mSmallText = reader.getString(cursor, reader.mSmallTextIndex);
+        mBodyText = reader.getString(cursor, reader.mBodyTextIndex);
+        mAction1Text = reader.getString(cursor, reader.mAction1TextIndex);
+        mAction1Uri = null;
+        mAction1UriString = reader.getString(cursor, reader.mAction1UriIndex);
+        mAction2Text = reader.getString(cursor, reader.mAction2TextIndex);
+        mAction2Uri = null;
+        mAction2UriString = reader.getString(cursor, reader.mAction2UriIndex);
+        mPriority = (int) reader.getLong(cursor, reader.mPriorityIndex, PRIORITY_LOW);
+        mExpirationDate = null;
+        mExpirationTime = reader.getLong(cursor, reader.mExpiresAtIndex, NO_TIME);
+
+        mImages.clear();
+        mRemovedImages.clear();
+        mDirtyColumns.clear();
+        mChangeCount++;
     }
 
+    private static Uri parseUri(String uri) {
+        return uri == null ? null : Uri.parse(uri);
+    }
+
+    /**
+     * Returns all cards currently published by this application, in
+     * {@link CmHomeContract.DataCard#SORT_ORDER_DEFAULT} order, along with their images.
+     * The cards and images are read with a single query.
+     * @param context A Context object to retrieve the ContentResolver
+     */
+    public static List<DataCard> getAllPublishedDataCards(Context context) {
+        List<DataCard> cards = new ArrayList<DataCard>();
+        Cursor cursor = context.getContentResolver().query(
+                CmHomeContract.DataCard.WITH_IMAGES_URI,
+                CmHomeContract.DataCard.PROJECTION_WITH_IMAGES,
+                null,
+                null,
+                null);
+        if (cursor == null) {
+            return cards;
+        }
+
+        try {
+            DataCardCursorReader reader = new DataCardCursorReader(cursor);
+            int idIndex = cursor.getColumnIndexOrThrow(CmHomeContract.DataCard._ID);
+            int imageIdIndex = cursor.getColumnIndexOrThrow(CmHomeContract.DataCard.IMAGE_ID_COL);
+            int imageUriIndex =
+                    cursor.getColumnIndexOrThrow(CmHomeContract.DataCard.IMAGE_URI_COL);
+
+            DataCard card = null;
+            while (cursor.moveToNext()) {
+                // The rows of a card are adjacent, one per image.
+                if (card == null || card.getId() != cursor.getInt(idIndex)) {
+                    card = reader.read();
+                    cards.add(card);
+                }
+                if (!cursor.isNull(imageIdIndex)) {
+                    card.mImages.add(DataCardImage.fromPublished(cursor.getInt(imageIdIndex),
+                                                                 card.getId(),
+                                                                 cursor.getString(imageUriIndex)));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return cards;
+    }
+
+    /**
+     * Returns an Iterator over all cards currently published by this application, in
+     * {@link CmHomeContract.DataCard#SORT_ORDER_DEFAULT} order. The cards are loaded from the
+     * ContentProvider a page at a time, so large feeds never have to fit in a single cursor.
+     * @param context A Context object to retrieve the ContentResolver
+     * @param pageSize The number of cards to load per query
+     */
+    public static Iterator<DataCard> iteratePublishedDataCards(Context context, int pageSize) {
+        return new DataCardPageIterator(context.getContentResolver(), pageSize);
+    }
+
+    /**
+     * Attaches an image to this card. It will be published along with the card, and will
+     * reference the card's id even if the card has not been published yet.
+     */
     public void addDataCardImage(Uri uri) {
         mImages.add(new DataCardImage(getId(), uri));
     }
 
+    /**
+     * Attaches a bitmap to this card, which is stored by the ContentProvider when the card
+     * is published. See {@link DataCardImage#setImage(Bitmap)}.
+     */
+    public void addDataCardImage(Bitmap image) {
+        mImages.add(new DataCardImage(getId(), image));
+    }
+
     public void addDataCardImage(DataCardImage image) {
+        mRemovedImages.remove(image);
         mImages.add(image);
     }
 
     public void clearImages() {
+        for (DataCardImage image : mImages) {
+            onImageRemoved(image);
+        }
         mImages.clear();
     }
 
     public void removeDataCardImage(DataCardImage image) {
-        mImages.remove(image);
+        if (mImages.remove(image)) {
+            onImageRemoved(image);
+        }
+    }
+
+    private void onImageRemoved(DataCardImage image) {
+        if (image.getId() != -1) {
+            mRemovedImages.add(image);
+        }
     }
 
     public int getId() {
@@ -65,6 +263,9 @@ public class DataCard {
     }
 
     public Date getCreatedDate() {
+        if (mCreatedDate == null && mCreatedTime != NO_TIME) {
+            mCreatedDate = new Date(mCreatedTime);
+        }
         return mCreatedDate;
     }
 
@@ -73,35 +274,57 @@ public class DataCard {
     }
 
     public void setSubject(String subject) {
+        markDirtyIfChanged(CmHomeContract.DataCard.SUBJECT_COL, mSubject, subject);
         this.mSubject = subject;
     }
 
     public Date getContentCreatedDate() {
+        if (mContentCreatedDate == null && mContentCreatedTime != NO_TIME) {
+            mContentCreatedDate = new Date(mContentCreatedTime);
+        }
         return mContentCreatedDate;
     }
 
     public void setContentCreatedDate(Date contentCreatedDate) {
+        markDirtyIfChanged(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL,
+                           getContentCreatedDate(), contentCreatedDate);
         this.mContentCreatedDate = contentCreatedDate;
+        this.mContentCreatedTime = NO_TIME;
     }
 
     public Date getLastModifiedDate() {
+        if (mLastModifiedDate == null && mLastModifiedTime != NO_TIME) {
+            mLastModifiedDate = new Date(mLastModifiedTime);
+        }
         return mLastModifiedDate;
     }
 
     public Uri getContentSourceImageUri() {
+        if (mContentSourceImageUri == null) {
+            mContentSourceImageUri = parseUri(mContentSourceImageUriString);
+        }
         return mContentSourceImageUri;
     }
 
     public void setContentSourceImageUri(Uri contentSourceImageUri) {
+        markDirtyIfChanged(CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL,
+                           getContentSourceImageUri(), contentSourceImageUri);
         this.mContentSourceImageUri = contentSourceImageUri;
+        this.mContentSourceImageUriString = null;
     }
 
     public Uri getAvatarImageUri() {
+        if (mAvatarImageUri == null) {
+            mAvatarImageUri = parseUri(mAvatarImageUriString);
+        }
         return mAvatarImageUri;
     }
 
     public void setAvatarImageUri(Uri avatarImageUri) {
+        markDirtyIfChanged(CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL,
+                           getAvatarImageUri(), avatarImageUri);
         this.mAvatarImageUri = avatarImageUri;
+        this.mAvatarImageUriString = null;
     }
 
     public String getTitle() {
@@ -109,6 +332,7 @@ public class DataCard {
     }
 
     public void setTitle(String title) {
+        markDirtyIfChanged(CmHomeContract.DataCard.TITLE_TEXT_COL, mTitle, title);
         this.mTitle = title;
     }
 
@@ -117,6 +341,7 @@ public class DataCard {
     }
 
     public void setSmallText(String smallText) {
+        markDirtyIfChanged(CmHomeContract.DataCard.SMALL_TEXT_COL, mSmallText, smallText);
         this.mSmallText = smallText;
     }
 
@@ -125,6 +350,7 @@ public class DataCard {
     }
 
     public void setBodyText(String bodyText) {
+        markDirtyIfChanged(CmHomeContract.DataCard.BODY_TEXT_COL, mBodyText, bodyText);
         this.mBodyText = bodyText;
     }
 
@@ -133,15 +359,23 @@ public class DataCard {
     }
 
     public void setAction1Text(String action1Text) {
+        markDirtyIfChanged(CmHomeContract.DataCard.ACTION_1_TEXT_COL, mAction1Text,
+                           action1Text);
         this.mAction1Text = action1Text;
     }
 
     public Uri getAction1Uri() {
+        if (mAction1Uri == null) {
+            mAction1Uri = parseUri(mAction1UriString);
+        }
         return mAction1Uri;
     }
 
     public void setAction1Uri(Uri action1Uri) {
+        markDirtyIfChanged(CmHomeContract.DataCard.ACTION_1_URI_COL, getAction1Uri(),
+                           action1Uri);
         this.mAction1Uri = action1Uri;
+        this.mAction1UriString = null;
     }
 
     public String getAction2Text() {
@@ -149,15 +383,23 @@ public class DataCard {
     }
 
     public void setAction2Text(String action2Text) {
+        markDirtyIfChanged(CmHomeContract.DataCard.ACTION_2_TEXT_COL, mAction2Text,
+                           action2Text);
         this.mAction2Text = action2Text;
     }
 
     public Uri getAction2Uri() {
+        if (mAction2Uri == null) {
+            mAction2Uri = parseUri(mAction2UriString);
+        }
         return mAction2Uri;
     }
 
     public void setAction2Uri(Uri action2Uri) {
+        markDirtyIfChanged(CmHomeContract.DataCard.ACTION_2_URI_COL, getAction2Uri(),
+                           action2Uri);
         this.mAction2Uri = action2Uri;
+        this.mAction2UriString = null;
     }
 
     public int getPriority() {
@@ -165,78 +407,491 @@ public class DataCard {
     }
 
     public void setPriority(int priority) {
+        if (mPriority != priority) {
+            markDirty(CmHomeContract.DataCard.PRIORITY_COL);
+        }
         this.mPriority = priority;
     }
 
-    public void publish(Context context) {
-        boolean updated = false;
-        // If we have an ID, try to update that row first.
-        if (getId() != -1) {
-            updated = update(context);
+    public Date getExpirationDate() {
+        if (mExpirationDate == null && mExpirationTime != NO_TIME) {
+            mExpirationDate = new Date(mExpirationTime);
         }
+        return mExpirationDate;
+    }
 
-        // If the update could not succeed, either this card never existed,
-        // or was deleted. Either way, create a new row for this card.
-        if (!updated) {
-            ContentResolver contentResolver = context.getContentResolver();
+    /**
+     * Sets the date after which CM Home deletes this card and its images, whether or not it
+     * has been read.
+     * @param expirationDate The expiration date, or null if the card never expires.
+     */
+    public void setExpirationDate(Date expirationDate) {
+        markDirtyIfChanged(CmHomeContract.DataCard.EXPIRES_AT_COL, getExpirationDate(),
+                           expirationDate);
+        this.mExpirationDate = expirationDate;
+        this.mExpirationTime = NO_TIME;
+    }
 
-            ContentValues values = getContentValues();
+    /**
+     * Publishes this card and its images to CM Home with a single call to the ContentProvider,
+     * in one transaction. A card that has already been published is updated in place, or
+     * inserted again under the same id if it has been deleted since. Only the fields and images
+     * that changed since the last publish are written, and nothing is done at all if none of
+     * them did.
+     * @param context A Context object to retrieve the ContentResolver
+     * @return true if the card was published, false if nothing could be written.
+     */
+    public boolean publish(Context context) {
+        return publishAll(context, Collections.singletonList(this));
+    }
 
-            Uri result = contentResolver.insert(CmHomeContract.DataCard.CONTENT_URI, values);
-            // Store the resulting ID
-            setId(Integer.parseInt(result.getLastPathSegment()));
-        }
+    /**
+     * Publishes this card and its images to CM Home on a background thread, without blocking
+     * the caller. Publishes requested shortly after one another are written together, in one
+     * batch, and a card published again before its previous publish was written is only
+     * written once, with its latest state. Published cards are told apart by id, so other
+     * instances of the same card are written along with this one; their changes to fields
+     * this card did not change are kept.
+     *
+     * The card is copied when this is called, so it may be changed right away. The ids
+     * generated for the card and its images are stored back into it on the calling thread,
+     * or on the main thread if the calling thread has no Looper, so the card must only be
+     * changed on that thread.
+     * @param context A Context object to retrieve the ContentResolver
+     */
+    public void publishAsync(Context context) {
+        publishAsync(context, null);
     }
 
     /**
-     * Updates an existing row in the ContentProvider that represents this card.
-     * This will update every column at once.
+     * Like {@link #publishAsync(Context)}, and calls the callback once the card was written.
+     * @param callback The callback to call, or null
+     */
+    public void publishAsync(Context context, PublishCallback callback) {
+        DataCardPublisher.getInstance().enqueue(context, this, callback);
+    }
+
+    /**
+     * Publishes all of the given cards and their images with a single call to the
+     * ContentProvider, in one transaction. The ids generated for new cards and images are
+     * stored back into the objects.
+     * Like {@link #publish(Context)}, only the fields and images that changed are written.
      * @param context A Context object to retrieve the ContentResolver
-     * @return true if the update successfully updates a row, false otherwise.
+     * @param dataCards The cards to publish
+     * @return true if all cards were published, false otherwise.
      */
-    private boolean update(Context context) {
-        if (getId() == -1) {
-            return false;
+    public static boolean publishAll(Context context, Collection<DataCard> dataCards) {
+        ArrayList<ContentProviderOperation> operations = getPublishOperations(dataCards);
+        if (operations.isEmpty()) {
+            return true;
+        }
+
+        ContentProviderResult[] results = applyBatch(context, operations);
+        if (results == null) {
+            // One of the cards may have been deleted since it was last published, in which
+            // case its partial update fails the whole batch. Retry once with every field.
+            for (DataCard dataCard : dataCards) {
+                dataCard.markAllDirty();
+            }
+            results = applyBatch(context, getPublishOperations(dataCards));
+            if (results == null) {
+                return false;
+            }
         }
 
+        int index = 0;
+        List<DataCardImage> images = new ArrayList<DataCardImage>();
+        for (DataCard dataCard : dataCards) {
+            index = dataCard.onPublished(results, index);
+            images.addAll(dataCard.mImages);
+        }
+        DataCardImage.readStoredImageUris(context, images);
+        return true;
+    }
+
+    private static ArrayList<ContentProviderOperation> getPublishOperations(
+            Collection<DataCard> dataCards) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (DataCard dataCard : dataCards) {
+            dataCard.addPublishOperations(operations);
+        }
+        return operations;
+    }
+
+    /**
+     * Appends the operations that publish the changes to this card: the card itself if any of
+     * its fields changed, deletes for removed images, and upserts for new or changed images.
+     * A new card publishes all of its images, which reference the id generated by the card's
+     * insert through a back reference.
+     */
+    private void addPublishOperations(ArrayList<ContentProviderOperation> operations) {
+        int cardIndex = operations.size();
+        boolean newCard = getId() == -1;
+        if (hasChanges()) {
+            operations.add(ContentProviderOperation.newInsert(getPublishUri())
+                                                   .withValues(getContentValues())
+                                                   .build());
+        }
+
+        for (DataCardImage image : mRemovedImages) {
+            operations.add(ContentProviderOperation
+                                   .newDelete(ContentUris.withAppendedId(
+                                           CmHomeContract.DataCardImage.CONTENT_URI,
+                                           image.getId()))
+                                   .build());
+        }
+
+        for (DataCardImage image : mImages) {
+            if (!needsPublish(image, newCard)) {
+                continue;
+            }
+            image.setDataCardId(getId());
+            ContentProviderOperation.Builder builder = image.getPublishOperation();
+            if (newCard) {
+                builder.withValueBackReference(CmHomeContract.DataCardImage.DATA_CARD_ID_COL,
+                                               cardIndex);
+            }
+            operations.add(builder.build());
+        }
+    }
+
+    /**
+     * Stores the ids generated by the operations added in {@link #addPublishOperations}.
+     * @return The index of the first result that does not belong to this card.
+     */
+    private int onPublished(ContentProviderResult[] results, int index) {
+        boolean newCard = getId() == -1;
+        if (hasChanges()) {
+            setId((int) ContentUris.parseId(results[index++].uri));
+            mDirtyColumns.clear();
+        }
+
+        for (DataCardImage image : mRemovedImages) {
+            index++;
+            image.setId(-1);
+        }
+        mRemovedImages.clear();
+
+        for (DataCardImage image : mImages) {
+            if (!needsPublish(image, newCard)) {
+                continue;
+            }
+            image.setDataCardId(getId());
+            image.onPublished(results[index++]);
+        }
+        return index;
+    }
+
+    /**
+     * Copies the state that publishing reads and writes, so that the copy can be published on
+     * another thread while this card is changed.
+     */
+    DataCard copyForPublish() {
+        DataCard copy = new DataCard();
+        copy.mId = mId;
+        copy.mSubject = mSubject;
+        copy.mContentCreatedDate = mContentCreatedDate;
+        copy.mContentCreatedTime = mContentCreatedTime;
+        copy.mCreatedDate = mCreatedDate;
+        copy.mCreatedTime = mCreatedTime;
+        copy.mLastModifiedDate = mLastModifiedDate;
+        copy.mLastModifiedTime = mLastModifiedTime;
+        copy.mContentSourceImageUri = mContentSourceImageUri;
+        copy.mContentSourceImageUriString = mContentSourceImageUriString;
+        copy.mAvatarImageUri = mAvatarImageUri;
+        copy.mAvatarImageUriString = mAvatarImageUriString;
+        copy.mTitle = mTitle;
+        copy.mSmallText = mSmallText;
+        copy.mBodyText = mBodyText;
+        copy.mAction1Text = mAction1Text;
+        copy.mAction1Uri = mAction1Uri;
+        copy.mAction1UriString = mAction1UriString;
+        copy.mAction2Text = mAction2Text;
+        copy.mAction2Uri = mAction2Uri;
+        copy.mAction2UriString = mAction2UriString;
+        copy.mPriority = mPriority;
+        copy.mExpirationDate = mExpirationDate;
+        copy.mExpirationTime = mExpirationTime;
+        copy.mDirtyColumns.addAll(mDirtyColumns);
+        for (DataCardImage image : mImages) {
+            copy.mImages.add(image.copyForPublish());
+        }
+        for (DataCardImage image : mRemovedImages) {
+            copy.mRemovedImages.add(image.copyForPublish());
+        }
+        copy.mSource = this;
+        copy.mSourceChangeCount = mChangeCount;
+        return copy;
+    }
+
+    DataCard getSource() {
+        return mSource;
+    }
+
+    /**
+     * Takes the changes of a copy of another instance of the same card, queued before this
+     * copy and written along with it: the fields it changed that this copy did not, and its
+     * images.
+     */
+    void mergeEarlierCopy(DataCard earlier) {
+        for (String column : earlier.mDirtyColumns) {
+            if (!isDirty(column)) {
+                copyColumn(earlier, column);
+                mDirtyColumns.add(column);
+            }
+        }
+        for (DataCardImage image : earlier.mImages) {
+            if (!containsSource(mImages, image.getSource())) {
+                mImages.add(image);
+            }
+        }
+        for (DataCardImage image : earlier.mRemovedImages) {
+            if (!containsSource(mRemovedImages, image.getSource())) {
+                mRemovedImages.add(image);
+            }
+        }
+    }
+
+    private void copyColumn(DataCard from, String column) {
+        if (CmHomeContract.DataCard.SUBJECT_COL.equals(column)) {
+            mSubject = from.mSubject;
+        } else if (CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL.equals(column)) {
+            mContentCreatedDate = from.mContentCreatedDate;
+            mContentCreatedTime = from.mContentCreatedTime;
+        } else if (CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL.equals(column)) {
+            mContentSourceImageUri = from.mContentSourceImageUri;
+            mContentSourceImageUriString = from.mContentSourceImageUriString;
+        } else if (CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL.equals(column)) {
+            mAvatarImageUri = from.mAvatarImageUri;
+            mAvatarImageUriString = from.mAvatarImageUriString;
+        } else if (CmHomeContract.DataCard.TITLE_TEXT_COL.equals(column)) {
+            mTitle = from.mTitle;
+        } else if (CmHomeContract.DataCard.SMALL_TEXT_COL.equals(column)) {
+            mSmallText = from.mSmallText;
+        } else if (CmHomeContract.DataCard.BODY_TEXT_COL.equals(column)) {
+            mBodyText = from.mBodyText;
+        } else if (CmHomeContract.DataCard.ACTION_1_TEXT_COL.equals(column)) {
+            mAction1Text = from.mAction1Text;
+        } else if (CmHomeContract.DataCard.ACTION_1_URI_COL.equals(column)) {
+            mAction1Uri = from.mAction1Uri;
+            mAction1UriString = from.mAction1UriString;
+        } else if (CmHomeContract.DataCard.ACTION_2_TEXT_COL.equals(column)) {
+            mAction2Text = from.mAction2Text;
+        } else if (CmHomeContract.DataCard.ACTION_2_URI_COL.equals(column)) {
+            mAction2Uri = from.mAction2Uri;
+            mAction2UriString = from.mAction2UriString;
+        } else if (CmHomeContract.DataCard.PRIORITY_COL.equals(column)) {
+            mPriority = from.mPriority;
+        } else if (CmHomeContract.DataCard.EXPIRES_AT_COL.equals(column)) {
+            mExpirationDate = from.mExpirationDate;
+            mExpirationTime = from.mExpirationTime;
+        }
+    }
+
+    private static boolean containsSource(List<DataCardImage> images, DataCardImage source) {
+        for (DataCardImage image : images) {
+            if (image.getSource() == source) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes the ids generated by publishing an earlier copy of the same card, which this copy
+     * was made before, so that it does not insert the card or its images a second time.
+     */
+    void adoptPublishedIds(DataCard published) {
+        if (mId == -1) {
+            setId(published.getId());
+        }
+        for (DataCardImage image : mImages) {
+            for (DataCardImage publishedImage : published.mImages) {
+                if (image.getSource() == publishedImage.getSource()) {
+                    image.adoptPublishedId(publishedImage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores the ids generated by publishing a copy of this card from
+     * {@link #copyForPublish()} into this card and its images. Fields that changed since the
+     * copy was made stay dirty.
+     */
+    void onCopyPublished(DataCard copy) {
+        if (mId == -1) {
+            setId(copy.getId());
+        }
+        if (mChangeCount == copy.mSourceChangeCount) {
+            mDirtyColumns.clear();
+        }
+
+        for (DataCardImage removedImage : copy.mRemovedImages) {
+            mRemovedImages.remove(removedImage.getSource());
+            removedImage.getSource().setId(-1);
+        }
+        for (DataCardImage image : copy.mImages) {
+            DataCardImage source = image.getSource();
+            source.onCopyPublished(image);
+            // An image removed while it was being inserted has to be deleted again.
+            if (source.getId() != -1 && !mImages.contains(source) &&
+                !mRemovedImages.contains(source)) {
+                mRemovedImages.add(source);
+            }
+        }
+    }
+
+    private static boolean needsPublish(DataCardImage image, boolean newCard) {
+        return newCard || image.getId() == -1 || image.isDirty();
+    }
+
+    /**
+     * Applies a batch of operations to the CM Home ContentProvider in one call.
+     * @return The results of the operations, or null if the batch could not be applied.
+     */
+    static ContentProviderResult[] applyBatch(Context context,
+                                              ArrayList<ContentProviderOperation> operations) {
         ContentResolver contentResolver = context.getContentResolver();
-        int rows = contentResolver.update(CmHomeContract.DataCard.CONTENT_URI,
-                                   getContentValues(),
-                                   CmHomeContract.DataCard._ID + " = " + getId(),
-                                   new String[]{});
+        try {
+            return contentResolver.applyBatch(CmHomeContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to publish to the CM Home ContentProvider.", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to publish to the CM Home ContentProvider.", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the card's own row has to be written on the next publish.
+     */
+    private boolean hasChanges() {
+        return getId() == -1 || !mDirtyColumns.isEmpty();
+    }
+
+    private void markDirty(String column) {
+        mDirtyColumns.add(column);
+        mChangeCount++;
+    }
 
-        // We must have updated more than one row
-        return rows > 0;
+    private void markDirtyIfChanged(String column, Object oldValue, Object newValue) {
+        if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+            markDirty(column);
+        }
+    }
 
+    /**
+     * Marks every field and image to be written on the next publish. A card deleted since it
+     * was published is then written again in full, along with the images deleted with it,
+     * which are inserted again under their ids.
+     */
+    private void markAllDirty() {
+        for (String column : PUBLISHED_COLUMNS) {
+            markDirty(column);
+        }
+        for (DataCardImage image : mImages) {
+            image.markDirty();
+        }
+    }
+
+    private boolean isDirty(String column) {
+        return mDirtyColumns.contains(column);
+    }
+
+    /**
+     * Returns the uri to insert this card's values into. Updates of a published card that only
+     * carry the changed fields must not create a new row if the card has been deleted, since
+     * that row would be incomplete.
+     */
+    private Uri getPublishUri() {
+        if (getId() == -1) {
+            return CmHomeContract.DataCard.CONTENT_URI;
+        }
+
+        Uri uri = ContentUris.withAppendedId(CmHomeContract.DataCard.CONTENT_URI, getId());
+        if (mDirtyColumns.size() < PUBLISHED_COLUMNS.length) {
+            uri = uri.buildUpon()
+                     .appendQueryParameter(CmHomeContract.PARAM_UPDATE_ONLY, "true")
+                     .build();
+        }
+        return uri;
     }
 
+    /**
+     * Builds the values for the columns that changed since this card was last published,
+     * along with the hash of the card's whole content.
+     */
     private ContentValues getContentValues() {
+        ContentValues values = getContentValues(false);
+        values.put(CmHomeContract.DataCard.CONTENT_HASH_COL,
+                   CmHomeContract.DataCard.computeContentHash(getContentValues(true)));
+        return values;
+    }
+
+    /**
+     * Builds the values for all published columns, or only for those that changed since this
+     * card was last published.
+     */
+    private ContentValues getContentValues(boolean allColumns) {
         ContentValues values = new ContentValues();
 
-        values.put(CmHomeContract.DataCard.SUBJECT_COL, getSubject());
-        values.put(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL,
-                   getContentCreatedDate().getTime());
-        values.put(CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL,
-                   getContentSourceImageUri().toString());
-        values.put(CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL,
-                   getAvatarImageUri().toString());
-        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL,
-                   getTitle());
-        values.put(CmHomeContract.DataCard.SMALL_TEXT_COL,
-                   getSmallText());
-        values.put(CmHomeContract.DataCard.BODY_TEXT_COL,
-                   getBodyText());
-        values.put(CmHomeContract.DataCard.ACTION_1_TEXT_COL,
-                   getAction1Text());
-        values.put(CmHomeContract.DataCard.ACTION_1_URI_COL,
-                   getAction1Uri().toString());
-        values.put(CmHomeContract.DataCard.ACTION_2_TEXT_COL,
-                   getAction2Text());
-        values.put(CmHomeContract.DataCard.ACTION_2_URI_COL,
-                   getAction2Uri().toString());
-        values.put(CmHomeContract.DataCard.PRIORITY_COL,
-                   getAction2Uri().toString());
+        if (allColumns || isDirty(CmHomeContract.DataCard.SUBJECT_COL)) {
+            values.put(CmHomeContract.DataCard.SUBJECT_COL, getSubject());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL)) {
+            values.put(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL,
+                       getContentCreatedDate().getTime());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL)) {
+            putUri(values, CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL,
+                   getContentSourceImageUri());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL)) {
+            putUri(values, CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL, getAvatarImageUri());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.TITLE_TEXT_COL)) {
+            values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, getTitle());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.SMALL_TEXT_COL)) {
+            values.put(CmHomeContract.DataCard.SMALL_TEXT_COL, getSmallText());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.BODY_TEXT_COL)) {
+            values.put(CmHomeContract.DataCard.BODY_TEXT_COL, getBodyText());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.ACTION_1_TEXT_COL)) {
+            values.put(CmHomeContract.DataCard.ACTION_1_TEXT_COL, getAction1Text());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.ACTION_1_URI_COL)) {
+            putUri(values, CmHomeContract.DataCard.ACTION_1_URI_COL, getAction1Uri());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.ACTION_2_TEXT_COL)) {
+            values.put(CmHomeContract.DataCard.ACTION_2_TEXT_COL, getAction2Text());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.ACTION_2_URI_COL)) {
+            putUri(values, CmHomeContract.DataCard.ACTION_2_URI_COL, getAction2Uri());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.PRIORITY_COL)) {
+            values.put(CmHomeContract.DataCard.PRIORITY_COL, getPriority());
+        }
+        if (allColumns || isDirty(CmHomeContract.DataCard.EXPIRES_AT_COL)) {
+            Date expirationDate = getExpirationDate();
+            if (expirationDate != null) {
+                values.put(CmHomeContract.DataCard.EXPIRES_AT_COL, expirationDate.getTime());
+            } else {
+                values.putNull(CmHomeContract.DataCard.EXPIRES_AT_COL);
+            }
+        }
 
         return values;
     }
+
+    private static void putUri(ContentValues values, String column, Uri uri) {
+        if (uri == null) {
+            values.putNull(column);
+        } else {
+            values.put(column, uri.toString());
+        }
+    }
 }
@@ -0,0 +1,259 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the cards of every installed publisher, for CM Home. Each publisher hosts its own
+ * CmHomeContentProvider, so the providers are queried in parallel on a small pool of threads,
+ * and their cursors are merged by priority into a {@link DataCardMergeCursor}. Each provider
+ * has the timeout to answer from the time its query starts; publishers that have not answered
+ * by then are left out of the result, so that a slow publisher cannot hold up the feed.
+ *
+ * Queries that time out are cancelled. A provider that ignores the cancellation holds up a
+ * thread of the pool until it answers, and the pool is bounded, so the queries of other
+ * publishers may have to wait for a thread. A query that has not started by the time every
+ * query could have run one after another on the pool, at the timeout each, is left out too.
+ */
+public class DataCardAggregator {
+    private static final String TAG = "DataCardAggregator";
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    private static final int  MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    private final Context            mContext;
+    private final ContentResolver    mContentResolver;
+    private final long               mTimeoutMillis;
+    private final ThreadPoolExecutor mExecutor;
+
+    public DataCardAggregator(Context context) {
+        this(context, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param timeoutMillis How long a query waits for each provider to answer.
+     */
+    public DataCardAggregator(Context context, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeoutMillis);
+        }
+        mContext = context.getApplicationContext();
+        mContentResolver = mContext.getContentResolver();
+        mTimeoutMillis = timeoutMillis;
+        mExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_MS,
+                                           TimeUnit.MILLISECONDS,
+                                           new LinkedBlockingQueue<Runnable>(),
+                                           new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, TAG + " #" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // Threads are only kept while queries are running.
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the authorities of the installed publishers' providers. Publishers may declare
+     * a subclass of CmHomeContentProvider, so they are found by the authority they declare,
+     * their package name followed by {@link CmHomeContract#AUTHORITY_SUFFIX}.
+     */
+    public List<String> findAuthorities() {
+        List<String> authorities = new ArrayList<String>();
+        List<ProviderInfo> providers =
+                mContext.getPackageManager().queryContentProviders(null, 0, 0);
+        if (providers == null) {
+            return authorities;
+        }
+
+        for (ProviderInfo provider : providers) {
+            if (provider.authority == null) {
+                continue;
+            }
+            String authority = provider.packageName + CmHomeContract.AUTHORITY_SUFFIX;
+            // A provider may be declared under several authorities.
+            for (String declaredAuthority : provider.authority.split(";")) {
+                if (authority.equals(declaredAuthority)) {
+                    authorities.add(authority);
+                    break;
+                }
+            }
+        }
+        return authorities;
+    }
+
+    /**
+     * Queries the cards of every installed publisher.
+     * @see #query(List, String[])
+     */
+    public DataCardMergeCursor query(String[] projection) {
+        return query(findAuthorities(), projection);
+    }
+
+    /**
+     * Queries the cards of the given publishers, and merges them by priority. Publishers that
+     * fail or do not answer within the timeout are left out.
+     * @param authorities The authorities of the publishers' providers, in the order cards of
+     *                    equal priority are returned in.
+     * @param projection The columns to return, or null for
+     *                   {@link CmHomeContract.DataCard#PROJECTION_ALL}. Publishers that lack a
+     *                   column return null for it.
+     */
+    public DataCardMergeCursor query(List<String> authorities, String[] projection) {
+        List<ProviderQuery> queries = new ArrayList<ProviderQuery>(authorities.size());
+        for (String authority : authorities) {
+            ProviderQuery query = new ProviderQuery(authority);
+            queries.add(query);
+            query.mFuture = mExecutor.submit(query);
+        }
+
+        // Every query can run within this time, even one after another at the timeout each.
+        long startDeadline = SystemClock.uptimeMillis() + mTimeoutMillis +
+                             (queries.size() - 1) * mTimeoutMillis / MAX_THREADS;
+        List<Cursor> cursors = new ArrayList<Cursor>(queries.size());
+        List<String> cursorAuthorities = new ArrayList<String>(queries.size());
+        for (ProviderQuery query : queries) {
+            Cursor cursor = query.finish(mTimeoutMillis, startDeadline);
+            if (cursor != null) {
+                cursors.add(cursor);
+                cursorAuthorities.add(query.mAuthority);
+            }
+        }
+
+        return new DataCardMergeCursor(
+                projection != null ? projection : CmHomeContract.DataCard.PROJECTION_ALL,
+                cursors.toArray(new Cursor[cursors.size()]),
+                cursorAuthorities.toArray(new String[cursorAuthorities.size()]));
+    }
+
+    /**
+     * Stops the threads of the pool. The aggregator cannot be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Queries the cards of one publisher, on the pool.
+     */
+    private class ProviderQuery implements Runnable {
+        final String mAuthority;
+        private final CancellationSignal mCancellationSignal = new CancellationSignal();
+        Future<?> mFuture;
+
+        // The uptime the query started at, or 0 while it waits for a thread.
+        private long    mStartTime;
+        private Cursor  mCursor;
+        private boolean mDone;
+        private boolean mFinished;
+
+        ProviderQuery(String authority) {
+            mAuthority = authority;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mStartTime = SystemClock.uptimeMillis();
+                // The deadline of the waiting caller is now measured from the start.
+                notifyAll();
+            }
+
+            Uri uri = CmHomeContract.buildUriForAuthority(CmHomeContract.DataCard.CONTENT_URI,
+                                                          mAuthority);
+            Cursor cursor = null;
+            try {
+                // All columns are queried, since publishers built against older versions of
+                // the SDK reject the columns they lack.
+                cursor = mContentResolver.query(uri,
+                                                null,
+                                                null,
+                                                null,
+                                                CmHomeContract.DataCard.SORT_ORDER_DEFAULT,
+                                                mCancellationSignal);
+                if (cursor != null) {
+                    // Fills the window here rather than on the caller's thread.
+                    cursor.getCount();
+                }
+            } catch (RuntimeException e) {
+                // A cancelled query throws OperationCanceledException, and was already
+                // reported as timed out.
+                if (!(e instanceof OperationCanceledException)) {
+                    Log.w(TAG, "Unable to query " + mAuthority, e);
+                }
+                if (cursor != null) {
+                    cursor.close();
+                    cursor = null;
+                }
+            }
+
+            synchronized (this) {
+                mDone = true;
+                notifyAll();
+                if (!mFinished) {
+                    mCursor = cursor;
+                    return;
+                }
+            }
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Waits until the query completes, or until the timeout has passed since it started,
+         * and returns its cursor, or null if it failed. A query that has not completed by
+         * then is cancelled, and its cursor closed if it completes later. When the calling
+         * thread is interrupted, the query is cancelled right away.
+         * @param startDeadline The uptime after which a query that has not started is
+         *                      cancelled
+         */
+        synchronized Cursor finish(long timeoutMillis, long startDeadline) {
+            try {
+                long remaining;
+                while (!mDone &&
+                       (remaining = (mStartTime != 0 ? mStartTime + timeoutMillis
+                                                     : startDeadline) -
+                                    SystemClock.uptimeMillis()) > 0) {
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                // Leaves the interrupt to the caller, which also ends the waits that follow.
+                Thread.currentThread().interrupt();
+            }
+
+            mFinished = true;
+            if (!mDone) {
+                Log.w(TAG, "Timed out querying " + mAuthority);
+                mCancellationSignal.cancel();
+                // Removes a query that has not started from the queue of the pool.
+                mFuture.cancel(false);
+            }
+            return mCursor;
+        }
+    }
+}
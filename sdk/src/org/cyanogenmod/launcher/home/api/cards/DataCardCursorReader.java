@@ -0,0 +1,87 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.database.Cursor;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+/**
+ * Reads DataCards from the rows of a cursor. Column indexes are looked up once, when the
+ * reader is created, instead of once per row, and a card can be reused across rows to avoid
+ * allocating one per row while scrolling. Dates and uris are only parsed when read from the
+ * card.
+ *
+ * Columns missing from the cursor's projection are left empty, except for _id, which is
+ * required.
+ */
+public class DataCardCursorReader {
+    private final Cursor mCursor;
+
+    final int mIdIndex;
+    final int mSubjectIndex;
+    final int mContentCreatedIndex;
+    final int mCreatedIndex;
+    final int mLastModifiedIndex;
+    final int mContentSourceImageUriIndex;
+    final int mAvatarImageUriIndex;
+    final int mTitleIndex;
+    final int mSmallTextIndex;
+    final int mBodyTextIndex;
+    final int mAction1TextIndex;
+    final int mAction1UriIndex;
+    final int mAction2TextIndex;
+    final int mAction2UriIndex;
+    final int mPriorityIndex;
+    final int mExpiresAtIndex;
+
+    public DataCardCursorReader(Cursor cursor) {
+        mCursor = cursor;
+        mIdIndex = cursor.getColumnIndexOrThrow(CmHomeContract.DataCard._ID);
+        mSubjectIndex = cursor.getColumnIndex(CmHomeContract.DataCard.SUBJECT_COL);
+        mContentCreatedIndex =
+                cursor.getColumnIndex(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL);
+        mCreatedIndex = cursor.getColumnIndex(CmHomeContract.DataCard.DATE_CREATED_COL);
+        mLastModifiedIndex = cursor.getColumnIndex(CmHomeContract.DataCard.LAST_MODIFIED_COL);
+        mContentSourceImageUriIndex =
+                cursor.getColumnIndex(CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL);
+        mAvatarImageUriIndex = cursor.getColumnIndex(CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL);
+        mTitleIndex = cursor.getColumnIndex(CmHomeContract.DataCard.TITLE_TEXT_COL);
+        mSmallTextIndex = cursor.getColumnIndex(CmHomeContract.DataCard.SMALL_TEXT_COL);
+        mBodyTextIndex = cursor.getColumnIndex(CmHomeContract.DataCard.BODY_TEXT_COL);
+        mAction1TextIndex = cursor.getColumnIndex(CmHomeContract.DataCard.ACTION_1_TEXT_COL);
+        mAction1UriIndex = cursor.getColumnIndex(CmHomeContract.DataCard.ACTION_1_URI_COL);
+        mAction2TextIndex = cursor.getColumnIndex(CmHomeContract.DataCard.ACTION_2_TEXT_COL);
+        mAction2UriIndex = cursor.getColumnIndex(CmHomeContract.DataCard.ACTION_2_URI_COL);
+        mPriorityIndex = cursor.getColumnIndex(CmHomeContract.DataCard.PRIORITY_COL);
+        mExpiresAtIndex = cursor.getColumnIndex(CmHomeContract.DataCard.EXPIRES_AT_COL);
+    }
+
+    /**
+     * Reads the cursor's current row into a new DataCard.
+     */
+    public DataCard read() {
+        return read(null);
+    }
+
+    /**
+     * Reads the cursor's current row into the given card, replacing all of its state, so
+     * that the same card can be reused for every row. The card must not be referenced
+     * elsewhere, for example by an adapter, when it is reused.
+     * @param reuse The card to fill, or null to create a new one.
+     * @return The card that was filled.
+     */
+    public DataCard read(DataCard reuse) {
+        DataCard card = reuse != null ? reuse : new DataCard();
+        card.readFrom(mCursor, this);
+        return card;
+    }
+
+    String getString(Cursor cursor, int index) {
+        return index == -1 ? null : cursor.getString(index);
+    }
+
+    long getLong(Cursor cursor, int index, long defaultValue) {
+        if (index == -1 || cursor.isNull(index)) {
+            return defaultValue;
+        }
+        return cursor.getLong(index);
+    }
+}
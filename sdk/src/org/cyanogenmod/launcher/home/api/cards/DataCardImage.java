@@ -1,22 +1,68 @@
 package org.cyanogenmod.launcher.home.api.cards;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.util.SparseArray;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
 public class DataCardImage {
-    private int mId;
+    private int mId = -1;
     private int mDataCardId;
     private Uri mImageUri;
+    /**
+     * The encoded image set by {@link #setImage(Bitmap)}, until it has been published.
+     */
+    private byte[] mImageData;
+    /**
+     * True if this image changed since it was last published.
+     */
+    private boolean mDirty = true;
+    /**
+     * Incremented whenever this image changes, see {@link DataCard#copyForPublish()}.
+     */
+    private int mChangeCount;
+
+    // Set on the copies made by copyForPublish(): the image copied, and its change count then.
+    private DataCardImage mSource;
+    private int           mSourceChangeCount;
 
     public DataCardImage(int dataCardId, Uri imageUri) {
         mDataCardId = dataCardId;
         mImageUri = imageUri;
     }
 
-    private void setId(int id) {
+    public DataCardImage(int dataCardId, Bitmap image) {
+        mDataCardId = dataCardId;
+        setImage(image);
+    }
+
+    /**
+     * Creates an image that was read back from the ContentProvider.
+     */
+    static DataCardImage fromPublished(int id, int dataCardId, String imageUri) {
+        DataCardImage image = new DataCardImage(dataCardId,
+                                                imageUri == null ? null : Uri.parse(imageUri));
+        image.mId = id;
+        image.mDirty = false;
+        return image;
+    }
+
+    void setId(int id) {
+        if (id == -1) {
+            markDirty();
+        }
         mId = id;
     }
 
@@ -29,6 +75,9 @@ public class DataCardImage {
     }
 
     public void setDataCardId(int dataCardId) {
+        if (mDataCardId != dataCardId) {
+            markDirty();
+        }
         mDataCardId = dataCardId;
     }
 
@@ -37,17 +86,221 @@ public class DataCardImage {
     }
 
     public void setImageUri(Uri imageUri) {
+        if (mImageUri == null ? imageUri != null : !mImageUri.equals(imageUri)) {
+            markDirty();
+            mImageData = null;
+        }
         mImageUri = imageUri;
     }
 
+    /**
+     * Sets the image to a bitmap, for images that are not available at a uri. The bitmap is
+     * encoded as a PNG and stored by the ContentProvider when this image is published, after
+     * which {@link #getImageUri()} returns the uri CM Home reads it from; until then, it
+     * returns null. The encoded bitmap is sent to the ContentProvider in a single binder
+     * transaction, so it has to stay well below 1 MB.
+     */
+    public void setImage(Bitmap image) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.PNG, 100, out);
+        markDirty();
+        mImageData = out.toByteArray();
+        // The ContentProvider names the stored image under the authority it is declared under.
+        mImageUri = null;
+    }
+
+    /**
+     * Returns the uri of a downsampled copy of this image, to display it at the given size
+     * without decoding it at full resolution. The image must have been published, and be
+     * either set with {@link #setImage(Bitmap)} or an http or https image.
+     * @param context The Context of the application that published the image
+     * @param size The size the image is displayed at, in pixels
+     */
+    public Uri getThumbnailUri(Context context, int size) {
+        if (getId() == -1) {
+            throw new IllegalStateException("The image has not been published");
+        }
+        return CmHomeContract.DataCardImage.buildThumbnailUri(
+                context.getPackageName() + CmHomeContract.AUTHORITY_SUFFIX, getId(), size);
+    }
+
+    boolean isDirty() {
+        return mDirty;
+    }
+
+    void markDirty() {
+        mDirty = true;
+        mChangeCount++;
+    }
+
+    /**
+     * Copies this image, see {@link DataCard#copyForPublish()}.
+     */
+    DataCardImage copyForPublish() {
+        DataCardImage copy = new DataCardImage(mDataCardId, mImageUri);
+        copy.mId = mId;
+        copy.mImageData = mImageData;
+        copy.mDirty = mDirty;
+        copy.mSource = this;
+        copy.mSourceChangeCount = mChangeCount;
+        return copy;
+    }
+
+    DataCardImage getSource() {
+        return mSource;
+    }
+
+    /**
+     * Takes the id generated by publishing an earlier copy of the same image.
+     */
+    void adoptPublishedId(DataCardImage published) {
+        if (mId == -1) {
+            mId = published.mId;
+            mDataCardId = published.mDataCardId;
+        }
+    }
+
+    /**
+     * Stores the id generated by publishing a copy of this image. The image stays dirty if
+     * it changed since the copy was made.
+     */
+    void onCopyPublished(DataCardImage copy) {
+        if (mId == -1) {
+            mId = copy.mId;
+        }
+        if (mDataCardId == -1) {
+            mDataCardId = copy.mDataCardId;
+        }
+        if (mChangeCount == copy.mSourceChangeCount && !copy.mDirty) {
+            mDirty = false;
+            mImageData = null;
+            mImageUri = copy.mImageUri;
+        }
+    }
+
     public void publish(Context context) {
         ContentResolver contentResolver  = context.getContentResolver();
-        ContentValues values = new ContentValues();
-        values.put(CmHomeContract.DataCardImage.DATA_CARD_ID_COL, getDataCardId());
-        values.put(CmHomeContract.DataCardImage.IMAGE_URI_COL,
-                   getImageUri().toString());
-        Uri result = contentResolver.insert(CmHomeContract.DataCardImage.CONTENT_URI, values);
+        ContentValues values = getContentValues();
+        Uri result = contentResolver.insert(getPublishUri(), values);
         // Store the resulting ID
         setId(Integer.parseInt(result.getLastPathSegment()));
+        mDirty = false;
+        mImageData = null;
+        readStoredImageUris(context, Collections.singletonList(this));
+    }
+
+    /**
+     * Publishes all of the given images with a single call to the ContentProvider. Images that
+     * have not been published yet are inserted, the others are updated in place or inserted
+     * again under the same id.
+     * @param context A Context object to retrieve the ContentResolver
+     * @param images The images to publish
+     * @return true if the batch was applied, false otherwise.
+     */
+    public static boolean publishAll(Context context, Collection<DataCardImage> images) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(images.size());
+        for (DataCardImage image : images) {
+            operations.add(image.getPublishOperation().build());
+        }
+
+        ContentProviderResult[] results = DataCard.applyBatch(context, operations);
+        if (results == null) {
+            return false;
+        }
+
+        int index = 0;
+        for (DataCardImage image : images) {
+            image.onPublished(results[index++]);
+        }
+        readStoredImageUris(context, images);
+        return true;
+    }
+
+    /**
+     * Reads the uris that the ContentProvider stored the published bitmaps among the given
+     * images under, with a single query.
+     */
+    static void readStoredImageUris(Context context, Collection<DataCardImage> images) {
+        SparseArray<DataCardImage> storedImages = new SparseArray<DataCardImage>();
+        for (DataCardImage image : images) {
+            if (image.mImageUri == null && image.mId != -1) {
+                storedImages.put(image.mId, image);
+            }
+        }
+        if (storedImages.size() == 0) {
+            return;
+        }
+
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < storedImages.size(); i++) {
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(storedImages.keyAt(i));
+        }
+        Cursor cursor = context.getContentResolver().query(
+                CmHomeContract.DataCardImage.CONTENT_URI,
+                new String[]{CmHomeContract.DataCardImage._ID,
+                             CmHomeContract.DataCardImage.IMAGE_URI_COL},
+                CmHomeContract.DataCardImage._ID + " IN (" + ids + ")",
+                null,
+                null);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                DataCardImage image = storedImages.get(cursor.getInt(0));
+                if (image != null && !cursor.isNull(1)) {
+                    image.mImageUri = Uri.parse(cursor.getString(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Builds the operation that publishes this image. The caller may still add a back
+     * reference for the data card id before building it.
+     */
+    ContentProviderOperation.Builder getPublishOperation() {
+        return ContentProviderOperation.newInsert(getPublishUri()).withValues(getContentValues());
+    }
+
+    /**
+     * Returns the uri an insert publishing this image goes to: the list uri for a new image,
+     * and otherwise the item uri, on which the insert updates the image in place.
+     */
+    private Uri getPublishUri() {
+        Uri uri = CmHomeContract.DataCardImage.CONTENT_URI;
+        if (getId() != -1) {
+            uri = ContentUris.withAppendedId(uri, getId());
+        }
+        return uri;
+    }
+
+    /**
+     * Stores the id of the row written by the operation from {@link #getPublishOperation()}.
+     */
+    void onPublished(ContentProviderResult result) {
+        setId((int) ContentUris.parseId(result.uri));
+        mDirty = false;
+        mImageData = null;
+    }
+
+    ContentValues getContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCardImage.DATA_CARD_ID_COL, getDataCardId());
+        // The uri of a bitmap is set by the ContentProvider once it has stored it.
+        if (getImageUri() != null) {
+            values.put(CmHomeContract.DataCardImage.IMAGE_URI_COL, getImageUri().toString());
+        }
+        if (mImageData != null) {
+            values.put(CmHomeContract.DataCardImage.IMAGE_DATA_COL, mImageData);
+        }
+        return values;
     }
 }
@@ -0,0 +1,247 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the cards of several publishers into one cursor, in
+ * {@link CmHomeContract.DataCard#SORT_ORDER_DEFAULT} order. Each source cursor must already
+ * be in that order, so that the merge only compares the heads of the sources: it takes
+ * O(n log k) for n cards from k publishers, and the order is computed once, when the cursor is
+ * created. Cards of equal priority keep the order of their sources.
+ *
+ * The columns of the sources are matched by name, so that publishers built against older
+ * versions of the SDK can be merged with newer ones. Columns a source lacks read as null.
+ * {@link #AUTHORITY_COL} holds the authority of the publisher of each card, since card ids
+ * are only unique within a publisher.
+ *
+ * Content observers registered with the merged cursor are registered with its sources, so
+ * they are notified when the cards of any publisher change. The merged cursor keeps the order
+ * it was created with: observers have to query the aggregator again for the new cards.
+ */
+public class DataCardMergeCursor extends AbstractCursor {
+    public static final String AUTHORITY_COL = "authority";
+
+    private final String[] mColumnNames;
+    private final Cursor[] mCursors;
+    private final String[] mAuthorities;
+    // The index of each merged column in each source, or -1 if the source lacks it.
+    private final int[][]  mColumnIndexes;
+    private final int      mAuthorityIndex;
+
+    // The source and source position of each merged row.
+    private final int[] mRowCursors;
+    private final int[] mRowPositions;
+
+    private Cursor mCursor;
+    private int    mCursorIndex;
+
+    /**
+     * @param columnNames The columns of the merged cursor, not including
+     *                    {@link #AUTHORITY_COL}, which is added last.
+     * @param cursors The sources, in the order ties are broken in. They are closed along with
+     *                the merged cursor.
+     * @param authorities The authority of the publisher of each source.
+     */
+    public DataCardMergeCursor(String[] columnNames, Cursor[] cursors, String[] authorities) {
+        if (cursors.length != authorities.length) {
+            throw new IllegalArgumentException("Expected an authority for each cursor");
+        }
+        mColumnNames = new String[columnNames.length + 1];
+        System.arraycopy(columnNames, 0, mColumnNames, 0, columnNames.length);
+        mAuthorityIndex = columnNames.length;
+        mColumnNames[mAuthorityIndex] = AUTHORITY_COL;
+        mCursors = cursors;
+        mAuthorities = authorities;
+
+        int count = 0;
+        mColumnIndexes = new int[cursors.length][];
+        for (int i = 0; i < cursors.length; i++) {
+            mColumnIndexes[i] = new int[columnNames.length];
+            for (int j = 0; j < columnNames.length; j++) {
+                mColumnIndexes[i][j] = cursors[i].getColumnIndex(columnNames[j]);
+            }
+            count += cursors[i].getCount();
+        }
+
+        mRowCursors = new int[count];
+        mRowPositions = new int[count];
+        merge();
+    }
+
+    private void merge() {
+        final int[] priorityIndexes = new int[mCursors.length];
+        for (int i = 0; i < mCursors.length; i++) {
+            priorityIndexes[i] = mCursors[i].getColumnIndex(CmHomeContract.DataCard.PRIORITY_COL);
+        }
+
+        // Orders the sources by the priority of the row they are positioned on.
+        PriorityQueue<Integer> heads = new PriorityQueue<Integer>(Math.max(mCursors.length, 1),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer lhs, Integer rhs) {
+                        int result = comparePriorities(mCursors[lhs], priorityIndexes[lhs],
+                                                       mCursors[rhs], priorityIndexes[rhs]);
+                        return result != 0 ? result : lhs.compareTo(rhs);
+                    }
+                });
+        for (int i = 0; i < mCursors.length; i++) {
+            if (mCursors[i].moveToFirst()) {
+                heads.add(i);
+            }
+        }
+
+        int row = 0;
+        while (!heads.isEmpty()) {
+            int cursorIndex = heads.poll();
+            Cursor cursor = mCursors[cursorIndex];
+            mRowCursors[row] = cursorIndex;
+            mRowPositions[row] = cursor.getPosition();
+            row++;
+            if (cursor.moveToNext()) {
+                heads.add(cursorIndex);
+            }
+        }
+    }
+
+    /**
+     * Compares priorities the way SQLite orders them, with null before any value.
+     */
+    private static int comparePriorities(Cursor lhs, int lhsIndex, Cursor rhs, int rhsIndex) {
+        boolean lhsNull = lhsIndex == -1 || lhs.isNull(lhsIndex);
+        boolean rhsNull = rhsIndex == -1 || rhs.isNull(rhsIndex);
+        if (lhsNull || rhsNull) {
+            return lhsNull == rhsNull ? 0 : (lhsNull ? -1 : 1);
+        }
+        long lhsPriority = lhs.getLong(lhsIndex);
+        long rhsPriority = rhs.getLong(rhsIndex);
+        return lhsPriority < rhsPriority ? -1 : (lhsPriority == rhsPriority ? 0 : 1);
+    }
+
+    /**
+     * Returns the authority of the publisher of the current card.
+     */
+    public String getAuthority() {
+        checkPosition();
+        return mAuthorities[mCursorIndex];
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mCursorIndex = mRowCursors[newPosition];
+        mCursor = mCursors[mCursorIndex];
+        return mCursor.moveToPosition(mRowPositions[newPosition]);
+    }
+
+    @Override
+    public int getCount() {
+        return mRowCursors.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /**
+     * Returns the index of a column in the current source, or -1 if it lacks the column or
+     * the column is {@link #AUTHORITY_COL}.
+     */
+    private int getSourceIndex(int column) {
+        checkPosition();
+        if (column == mAuthorityIndex) {
+            return -1;
+        }
+        return mColumnIndexes[mCursorIndex][column];
+    }
+
+    @Override
+    public String getString(int column) {
+        if (column == mAuthorityIndex) {
+            return getAuthority();
+        }
+        int index = getSourceIndex(column);
+        return index == -1 ? null : mCursor.getString(index);
+    }
+
+    @Override
+    public short getShort(int column) {
+        int index = getSourceIndex(column);
+        return index == -1 ? 0 : mCursor.getShort(index);
+    }
+
+    @Override
+    public int getInt(int column) {
+        int index = getSourceIndex(column);
+        return index == -1 ? 0 : mCursor.getInt(index);
+    }
+
+    @Override
+    public long getLong(int column) {
+        int index = getSourceIndex(column);
+        return index == -1 ? 0 : mCursor.getLong(index);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        int index = getSourceIndex(column);
+        return index == -1 ? 0 : mCursor.getFloat(index);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        int index = getSourceIndex(column);
+        return index == -1 ? 0 : mCursor.getDouble(index);
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        int index = getSourceIndex(column);
+        return index == -1 ? null : mCursor.getBlob(index);
+    }
+
+    @Override
+    public int getType(int column) {
+        if (column == mAuthorityIndex) {
+            return FIELD_TYPE_STRING;
+        }
+        int index = getSourceIndex(column);
+        return index == -1 ? FIELD_TYPE_NULL : mCursor.getType(index);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        if (column == mAuthorityIndex) {
+            return false;
+        }
+        int index = getSourceIndex(column);
+        return index == -1 || mCursor.isNull(index);
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+        for (Cursor cursor : mCursors) {
+            cursor.registerContentObserver(observer);
+        }
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+        for (Cursor cursor : mCursors) {
+            cursor.unregisterContentObserver(observer);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        for (Cursor cursor : mCursors) {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the published cards a page at a time, using the (priority, _id) key of the
+ * last card of each page to query the next one. Unlike an offset, the key keeps the order
+ * stable when cards are inserted or deleted while iterating.
+ */
+class DataCardPageIterator implements Iterator<DataCard> {
+    private final ContentResolver mContentResolver;
+    private final int             mPageSize;
+
+    private List<DataCard> mPage = new ArrayList<DataCard>();
+    private int            mPosition;
+    private boolean        mLastPage;
+
+    // The key of the last card loaded. It is read from the row rather than from the card,
+    // since the card reads a missing priority as PRIORITY_LOW while the row sorts first, and
+    // the caller may change the card's priority while iterating. A null priority is a
+    // missing one.
+    private boolean mHasLastKey;
+    private Integer mLastPriority;
+    private long    mLastId;
+
+    DataCardPageIterator(ContentResolver contentResolver, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        mContentResolver = contentResolver;
+        mPageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mPosition < mPage.size()) {
+            return true;
+        }
+        if (mLastPage) {
+            return false;
+        }
+        loadNextPage();
+        return mPosition < mPage.size();
+    }
+
+    @Override
+    public DataCard next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return mPage.get(mPosition++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void loadNextPage() {
+        Uri uri;
+        if (!mHasLastKey) {
+            uri = CmHomeContract.DataCard.buildPageUri(mPageSize);
+        } else {
+            uri = CmHomeContract.DataCard.buildPageUri(mPageSize, mLastPriority, mLastId);
+        }
+
+        mPage.clear();
+        mPosition = 0;
+        Cursor cursor = mContentResolver.query(uri,
+                                               CmHomeContract.DataCard.PROJECTION_ALL,
+                                               null,
+                                               null,
+                                               null);
+        if (cursor == null) {
+            mLastPage = true;
+            return;
+        }
+
+        try {
+            DataCardCursorReader reader = new DataCardCursorReader(cursor);
+            while (cursor.moveToNext()) {
+                mPage.add(reader.read());
+            }
+            if (cursor.moveToLast()) {
+                int priorityIndex =
+                        cursor.getColumnIndexOrThrow(CmHomeContract.DataCard.PRIORITY_COL);
+                mHasLastKey = true;
+                mLastPriority = cursor.isNull(priorityIndex) ? null
+                                                             : cursor.getInt(priorityIndex);
+                mLastId = cursor.getLong(
+                        cursor.getColumnIndexOrThrow(CmHomeContract.DataCard._ID));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        mLastPage = mPage.size() < mPageSize;
+    }
+}
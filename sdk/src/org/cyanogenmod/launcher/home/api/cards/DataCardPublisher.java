@@ -0,0 +1,222 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the cards published with {@link DataCard#publishAsync(Context, DataCard.PublishCallback)}
+ * on a single background thread. Publishes are queued for a short delay and written together
+ * with {@link DataCard#publishAll(Context, java.util.Collection)}, and a card queued again
+ * before it was written only has its latest copy written. Published cards are queued by id,
+ * so that other instances of the same card are coalesced too, and new cards by identity.
+ * Batches are written at most every {@link #MIN_FLUSH_INTERVAL_MS}, which bounds the rate of
+ * writes a card that changes continuously causes.
+ *
+ * The results are applied to the cards on the threads that queued them. Until then, the ids
+ * generated for new cards are kept here, and given to copies of the same cards queued in the
+ * meantime, so that they update the cards rather than inserting them again.
+ */
+class DataCardPublisher {
+    private static final String TAG = "DataCardPublisher";
+    private static final long   FLUSH_DELAY_MS = 100;
+    private static final long   MIN_FLUSH_INTERVAL_MS = 500;
+
+    private static DataCardPublisher sInstance;
+
+    /**
+     * One publish of a card: the copy made when it was queued, and where to deliver its result.
+     */
+    private static class Delivery {
+        final DataCard                 mCopy;
+        final Handler                  mResultHandler;
+        final DataCard.PublishCallback mCallback;
+
+        Delivery(DataCard copy, Handler resultHandler, DataCard.PublishCallback callback) {
+            mCopy = copy;
+            mResultHandler = resultHandler;
+            mCallback = callback;
+        }
+    }
+
+    private static class PendingPublish {
+        final Object                  mKey;
+        // The latest copy to write of each instance of the card, the most recent last.
+        final Map<DataCard, DataCard> mCopies = new LinkedHashMap<DataCard, DataCard>();
+        final List<Delivery>          mDeliveries = new ArrayList<Delivery>();
+        Context                       mContext;
+        // The copy written, and the number of deliveries whose results were not applied yet.
+        DataCard                      mWrittenCopy;
+        int                           mUnappliedCount;
+
+        PendingPublish(Object key) {
+            mKey = key;
+        }
+
+        /**
+         * Merges the copies of all instances into the most recent one, which is written.
+         * Copies are merged from the most recent on, so that later changes win.
+         */
+        DataCard mergeCopies() {
+            List<DataCard> copies = new ArrayList<DataCard>(mCopies.values());
+            mWrittenCopy = copies.get(copies.size() - 1);
+            for (int i = copies.size() - 2; i >= 0; i--) {
+                mWrittenCopy.mergeEarlierCopy(copies.get(i));
+            }
+            return mWrittenCopy;
+        }
+    }
+
+    private final Handler mHandler;
+
+    // The cards waiting to be written, by key, in the order they were first queued.
+    private final Map<Object, PendingPublish> mPending =
+            new LinkedHashMap<Object, PendingPublish>();
+    // The last copy written of each card whose results were not applied to it yet, by key.
+    private final Map<Object, DataCard>       mUnapplied = new HashMap<Object, DataCard>();
+
+    private boolean mFlushScheduled;
+    private long    mLastFlushTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private DataCardPublisher(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    static synchronized DataCardPublisher getInstance() {
+        if (sInstance == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sInstance = new DataCardPublisher(thread.getLooper());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the key a card is queued under: its id once it is published, and the card
+     * itself before.
+     */
+    private static Object getKey(DataCard dataCard) {
+        return dataCard.getId() != -1 ? Integer.valueOf(dataCard.getId()) : dataCard;
+    }
+
+    /**
+     * Queues a copy of the card's current state to be written.
+     */
+    synchronized void enqueue(Context context, DataCard dataCard,
+                              DataCard.PublishCallback callback) {
+        Object key = getKey(dataCard);
+        // The copy written is separate from the one the result is applied from, since the
+        // copies of other instances of the card are merged into it.
+        DataCard copy = dataCard.copyForPublish();
+        DataCard writeCopy = dataCard.copyForPublish();
+        DataCard unapplied = mUnapplied.get(key);
+        if (unapplied != null) {
+            copy.adoptPublishedIds(unapplied);
+            writeCopy.adoptPublishedIds(unapplied);
+        }
+
+        PendingPublish pending = mPending.get(key);
+        if (pending == null) {
+            pending = new PendingPublish(key);
+            mPending.put(key, pending);
+        }
+        // An earlier copy of the same instance is replaced: the card stays dirty until the
+        // result is applied, so the new copy holds all of its changes.
+        pending.mCopies.remove(dataCard);
+        pending.mCopies.put(dataCard, writeCopy);
+        pending.mContext = context.getApplicationContext();
+        Looper looper = Looper.myLooper();
+        Handler resultHandler = new Handler(looper != null ? looper : Looper.getMainLooper());
+        pending.mDeliveries.add(new Delivery(copy, resultHandler, callback));
+
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            long now = SystemClock.uptimeMillis();
+            mHandler.postAtTime(mFlushRunnable,
+                                Math.max(now + FLUSH_DELAY_MS,
+                                         mLastFlushTime + MIN_FLUSH_INTERVAL_MS));
+        }
+    }
+
+    private void flush() {
+        List<PendingPublish> batch;
+        synchronized (this) {
+            mFlushScheduled = false;
+            mLastFlushTime = SystemClock.uptimeMillis();
+            batch = new ArrayList<PendingPublish>(mPending.values());
+            mPending.clear();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<DataCard> copies = new ArrayList<DataCard>(batch.size());
+        for (PendingPublish pending : batch) {
+            copies.add(pending.mergeCopies());
+        }
+        final boolean success = DataCard.publishAll(batch.get(0).mContext, copies);
+
+        if (success) {
+            synchronized (this) {
+                for (PendingPublish pending : batch) {
+                    pending.mUnappliedCount = pending.mDeliveries.size();
+                    mUnapplied.put(pending.mKey, pending.mWrittenCopy);
+                    PendingPublish newer = mPending.get(pending.mKey);
+                    if (newer != null) {
+                        for (DataCard newerCopy : newer.mCopies.values()) {
+                            newerCopy.adoptPublishedIds(pending.mWrittenCopy);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (final PendingPublish pending : batch) {
+            for (final Delivery delivery : pending.mDeliveries) {
+                delivery.mResultHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        DataCard dataCard = delivery.mCopy.getSource();
+                        if (success) {
+                            applyResult(pending, delivery);
+                        }
+                        if (delivery.mCallback != null) {
+                            delivery.mCallback.onPublished(dataCard, success);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stores the ids generated by writing a pending publish into the card of one of its
+     * deliveries.
+     */
+    private synchronized void applyResult(PendingPublish pending, Delivery delivery) {
+        // The card's images may have been written from a later copy, or from a copy of
+        // another instance.
+        delivery.mCopy.adoptPublishedIds(pending.mWrittenCopy);
+        delivery.mCopy.getSource().onCopyPublished(delivery.mCopy);
+        pending.mUnappliedCount--;
+        if (pending.mUnappliedCount == 0 &&
+            mUnapplied.get(pending.mKey) == pending.mWrittenCopy) {
+            mUnapplied.remove(pending.mKey);
+        }
+    }
+}
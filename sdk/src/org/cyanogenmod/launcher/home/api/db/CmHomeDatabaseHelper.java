@@ -3,16 +3,25 @@ package org.cyanogenmod.launcher.home.api.db;
 import android.content.Context;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
 import android.util.Log;
 import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
 
 /**
  * Creates the SQLite database that backs CMHomeContentProvider.
+ *
+ * The schema is created at version 1 and brought up to date by the same
+ * {@link SchemaMigration}s that upgrade existing databases, so new and upgraded databases
+ * always end up with the same schema.
+ *
+ * The database runs in write-ahead logging mode. Writes go through the single primary
+ * connection, while queries outside of a transaction are served from a pool of read-only
+ * connections, so CM Home's reads never wait for a publisher's sync to commit.
  */
 public class CmHomeDatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME          = "CmHomeAPI";
     private static final String TAG                    = "CmHomeDatabaseHelper";
-    private static final int    DATABASE_VERSION       = 1;
+    private static final int    DATABASE_VERSION       = 8;
     public static final String DATA_CARD_TABLE_NAME    = "DataCard";
     private static final String DATA_CARD_TABLE_CREATE =
             "CREATE TABLE " + DATA_CARD_TABLE_NAME +
@@ -26,13 +35,13 @@ public class CmHomeDatabaseHelper extends SQLiteOpenHelper {
             CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.DataCard.TITLE_TEXT_COL + " TEXT DEFAULT NULL," +
-            CmHomeContract.DataCard.SMALL_TEXT_COL + " TEXT DEFAULT NULL" +
-            CmHomeContract.DataCard.BODY_TEXT_COL + " TEXT DEFAULT NULL" +
-            CmHomeContract.DataCard.ACTION_1_TEXT_COL + " TEXT DEFAULT NULL" +
+            CmHomeContract.DataCard.SMALL_TEXT_COL + " TEXT DEFAULT NULL," +
+            CmHomeContract.DataCard.BODY_TEXT_COL + " TEXT DEFAULT NULL," +
+            CmHomeContract.DataCard.ACTION_1_TEXT_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.DataCard.ACTION_1_URI_COL + " TEXT DEFAULT NULL," +
-            CmHomeContract.DataCard.ACTION_2_TEXT_COL + " TEXT DEFAULT NULL" +
+            CmHomeContract.DataCard.ACTION_2_TEXT_COL + " TEXT DEFAULT NULL," +
             CmHomeContract.DataCard.ACTION_2_URI_COL + " TEXT DEFAULT NULL," +
-            CmHomeContract.DataCard.PRIORITY_COL + " INTEGER DEFAULT NULL;";
+            CmHomeContract.DataCard.PRIORITY_COL + " INTEGER DEFAULT NULL);";
 
     private static final String DATA_CARD_UPDATE_TIME_TRIGGER =
             "CREATE TRIGGER data_card_update_time_trigger " +
@@ -45,31 +54,407 @@ public class CmHomeDatabaseHelper extends SQLiteOpenHelper {
 
     public static final String DATA_CARD_IMAGE_TABLE_NAME   = "DataCardImage";
     private static final String DATA_CARD_IMAGE_TABLE_CREATE =
-            "CREATE TABLE " + DATA_CARD_TABLE_NAME +
+            "CREATE TABLE " + DATA_CARD_IMAGE_TABLE_NAME +
             "(_id INTEGER PRIMARY KEY," +
             "data_card_id INTEGER NOT NULL," +
             "image_uri TEXT NOT NULL," +
             "FOREIGN KEY(data_card_id) REFERENCES " + DATA_CARD_TABLE_NAME +
             "(_id));";
 
+    /**
+     * Records the ids of deleted DataCard and DataCardImage rows, so that consumers of the
+     * change feed can remove them.
+     */
+    public static final String TOMBSTONE_TABLE_NAME      = "Tombstone";
+    public static final String TOMBSTONE_TABLE_COL       = "table_name";
+    public static final String TOMBSTONE_ROW_ID_COL      = "row_id";
+    public static final String TOMBSTONE_DATE_DELETED_COL = "date_deleted";
+
+    /**
+     * The full-text index of the text of the cards. It stores no copy of the text, which is
+     * read from DataCard by rowid, and is kept in sync with DataCard by triggers.
+     */
+    public static final String DATA_CARD_SEARCH_TABLE_NAME = "DataCardSearch";
+
     private static final String DROP_TABLE_STATEMENT = "DROP TABLE IF EXISTS";
 
+    /**
+     * The current time in milliseconds since the epoch, as an SQL expression.
+     */
+    private static final String NOW_MILLIS =
+            "(CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER))";
+
+    /**
+     * Converts a column holding a CURRENT_TIMESTAMP text timestamp to milliseconds since the
+     * epoch, as an SQL expression.
+     */
+    private static String timestampToMillis(String column) {
+        return "CAST(strftime('%s', " + column + ") AS INTEGER) * 1000";
+    }
+
+    /**
+     * The tables dropped when the database cannot be migrated.
+     */
+    private static final String[] ALL_TABLES = {DATA_CARD_SEARCH_TABLE_NAME,
+                                                DATA_CARD_TABLE_NAME,
+                                                DATA_CARD_IMAGE_TABLE_NAME,
+                                                TOMBSTONE_TABLE_NAME};
+
+    private static final SchemaMigrator SCHEMA_MIGRATOR = new SchemaMigrator(
+            // Version 2: indexes for the default sort order, the images of a card and
+            // the modification date.
+            new SchemaMigration(2) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("CREATE INDEX IF NOT EXISTS data_card_priority_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.PRIORITY_COL + ")");
+                    database.execSQL("CREATE INDEX IF NOT EXISTS " +
+                                     "data_card_last_modified_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.LAST_MODIFIED_COL + ")");
+                    database.execSQL("CREATE INDEX IF NOT EXISTS " +
+                                     "data_card_image_data_card_id_index ON " +
+                                     DATA_CARD_IMAGE_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCardImage.DATA_CARD_ID_COL + ")");
+                }
+            },
+            // Version 3: modification dates for images, and tombstones for deleted rows, to
+            // serve the change feed.
+            new SchemaMigration(3) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    // SQLite cannot add a column defaulting to CURRENT_TIMESTAMP, so the image
+                    // table is rebuilt.
+                    database.execSQL("CREATE TABLE DataCardImage_v3" +
+                                     "(_id INTEGER PRIMARY KEY," +
+                                     "data_card_id INTEGER NOT NULL," +
+                                     "image_uri TEXT NOT NULL," +
+                                     "last_modified TEXT DEFAULT CURRENT_TIMESTAMP NOT NULL," +
+                                     "FOREIGN KEY(data_card_id) REFERENCES " +
+                                     DATA_CARD_TABLE_NAME + "(_id));");
+                    database.execSQL("INSERT INTO DataCardImage_v3" +
+                                     "(_id, data_card_id, image_uri) " +
+                                     "SELECT _id, data_card_id, image_uri FROM " +
+                                     DATA_CARD_IMAGE_TABLE_NAME);
+                    database.execSQL(DROP_TABLE_STATEMENT + " " + DATA_CARD_IMAGE_TABLE_NAME);
+                    database.execSQL("ALTER TABLE DataCardImage_v3 RENAME TO " +
+                                     DATA_CARD_IMAGE_TABLE_NAME);
+                    database.execSQL("CREATE INDEX data_card_image_data_card_id_index ON " +
+                                     DATA_CARD_IMAGE_TABLE_NAME + "(data_card_id)");
+                    database.execSQL("CREATE INDEX data_card_image_last_modified_index ON " +
+                                     DATA_CARD_IMAGE_TABLE_NAME + "(last_modified)");
+                    database.execSQL("CREATE TRIGGER data_card_image_update_time_trigger " +
+                                     "AFTER UPDATE ON " + DATA_CARD_IMAGE_TABLE_NAME +
+                                     " FOR EACH ROW BEGIN " +
+                                     "UPDATE " + DATA_CARD_IMAGE_TABLE_NAME +
+                                     " SET last_modified = CURRENT_TIMESTAMP" +
+                                     " WHERE _id = old._id; END");
+
+                    database.execSQL("CREATE TABLE " + TOMBSTONE_TABLE_NAME +
+                                     "(_id INTEGER PRIMARY KEY," +
+                                     TOMBSTONE_TABLE_COL + " TEXT NOT NULL," +
+                                     TOMBSTONE_ROW_ID_COL + " INTEGER NOT NULL," +
+                                     TOMBSTONE_DATE_DELETED_COL +
+                                     " TEXT DEFAULT CURRENT_TIMESTAMP NOT NULL);");
+                    database.execSQL("CREATE INDEX tombstone_date_deleted_index ON " +
+                                     TOMBSTONE_TABLE_NAME +
+                                     "(" + TOMBSTONE_TABLE_COL + ", " +
+                                     TOMBSTONE_DATE_DELETED_COL + ")");
+                    database.execSQL(createTombstoneTrigger("data_card_tombstone_trigger",
+                                                            DATA_CARD_TABLE_NAME));
+                    database.execSQL(createTombstoneTrigger("data_card_image_tombstone_trigger",
+                                                            DATA_CARD_IMAGE_TABLE_NAME));
+                }
+            },
+            // Version 4: expiration dates for cards, and deletion of the images of deleted
+            // cards, so that pruned cards do not leave their images behind.
+            new SchemaMigration(4) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("ALTER TABLE " + DATA_CARD_TABLE_NAME + " ADD COLUMN " +
+                                     CmHomeContract.DataCard.EXPIRES_AT_COL +
+                                     " INTEGER DEFAULT NULL");
+                    database.execSQL("CREATE INDEX data_card_expires_at_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.EXPIRES_AT_COL + ")");
+                    database.execSQL("DELETE FROM " + DATA_CARD_IMAGE_TABLE_NAME +
+                                     " WHERE data_card_id NOT IN (SELECT _id FROM " +
+                                     DATA_CARD_TABLE_NAME + ")");
+                    database.execSQL("CREATE TRIGGER data_card_image_cascade_trigger " +
+                                     "AFTER DELETE ON " + DATA_CARD_TABLE_NAME +
+                                     " FOR EACH ROW BEGIN " +
+                                     "DELETE FROM " + DATA_CARD_IMAGE_TABLE_NAME +
+                                     " WHERE data_card_id = old._id; END");
+                }
+            },
+            // Version 5: content hashes, to skip writes that do not change a card.
+            new SchemaMigration(5) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("ALTER TABLE " + DATA_CARD_TABLE_NAME + " ADD COLUMN " +
+                                     CmHomeContract.DataCard.CONTENT_HASH_COL +
+                                     " TEXT DEFAULT NULL");
+                }
+            },
+            // Version 6: dates stored as INTEGER milliseconds since the epoch, and modification
+            // dates set by the provider's writes rather than by a second UPDATE in a trigger.
+            new SchemaMigration(6) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    database.execSQL("DROP TRIGGER IF EXISTS data_card_update_time_trigger");
+                    database.execSQL("DROP TRIGGER IF EXISTS " +
+                                     "data_card_image_update_time_trigger");
+                    database.execSQL("DROP TRIGGER IF EXISTS data_card_tombstone_trigger");
+                    database.execSQL("DROP TRIGGER IF EXISTS data_card_image_tombstone_trigger");
+                    database.execSQL("DROP TRIGGER IF EXISTS data_card_image_cascade_trigger");
+
+                    // SQLite cannot change the type of a column, so the tables are rebuilt.
+                    database.execSQL("CREATE TABLE DataCard_v6" +
+                                     "(" + CmHomeContract.DataCard._ID + " INTEGER PRIMARY KEY," +
+                                     CmHomeContract.DataCard.SUBJECT_COL + " TEXT NOT NULL," +
+                                     CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL +
+                                     " INTEGER NOT NULL," +
+                                     CmHomeContract.DataCard.DATE_CREATED_COL +
+                                     " INTEGER DEFAULT " + NOW_MILLIS + " NOT NULL," +
+                                     CmHomeContract.DataCard.LAST_MODIFIED_COL +
+                                     " INTEGER DEFAULT " + NOW_MILLIS + " NOT NULL," +
+                                     CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.TITLE_TEXT_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.SMALL_TEXT_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.BODY_TEXT_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.ACTION_1_TEXT_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.ACTION_1_URI_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.ACTION_2_TEXT_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.ACTION_2_URI_COL +
+                                     " TEXT DEFAULT NULL," +
+                                     CmHomeContract.DataCard.PRIORITY_COL +
+                                     " INTEGER DEFAULT NULL," +
+                                     CmHomeContract.DataCard.EXPIRES_AT_COL +
+                                     " INTEGER DEFAULT NULL," +
+                                     CmHomeContract.DataCard.CONTENT_HASH_COL +
+                                     " TEXT DEFAULT NULL);");
+                    database.execSQL("INSERT INTO DataCard_v6 SELECT " +
+                                     CmHomeContract.DataCard._ID + ", " +
+                                     CmHomeContract.DataCard.SUBJECT_COL + ", " +
+                                     "CAST(" + CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL +
+                                     " AS INTEGER), " +
+                                     timestampToMillis(CmHomeContract.DataCard.DATE_CREATED_COL) +
+                                     ", " +
+                                     timestampToMillis(CmHomeContract.DataCard.LAST_MODIFIED_COL) +
+                                     ", " +
+                                     CmHomeContract.DataCard.CONTENT_SOURCE_IMAGE_URI_COL + ", " +
+                                     CmHomeContract.DataCard.AVATAR_IMAGE_URI_COL + ", " +
+                                     CmHomeContract.DataCard.TITLE_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.SMALL_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.BODY_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.ACTION_1_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.ACTION_1_URI_COL + ", " +
+                                     CmHomeContract.DataCard.ACTION_2_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.ACTION_2_URI_COL + ", " +
+                                     CmHomeContract.DataCard.PRIORITY_COL + ", " +
+                                     CmHomeContract.DataCard.EXPIRES_AT_COL + ", " +
+                                     CmHomeContract.DataCard.CONTENT_HASH_COL +
+                                     " FROM " + DATA_CARD_TABLE_NAME);
+                    database.execSQL(DROP_TABLE_STATEMENT + " " + DATA_CARD_TABLE_NAME);
+                    database.execSQL("ALTER TABLE DataCard_v6 RENAME TO " + DATA_CARD_TABLE_NAME);
+
+                    database.execSQL("CREATE TABLE DataCardImage_v6" +
+                                     "(" + CmHomeContract.DataCardImage._ID +
+                                     " INTEGER PRIMARY KEY," +
+                                     CmHomeContract.DataCardImage.DATA_CARD_ID_COL +
+                                     " INTEGER NOT NULL," +
+                                     CmHomeContract.DataCardImage.IMAGE_URI_COL +
+                                     " TEXT NOT NULL," +
+                                     CmHomeContract.DataCardImage.LAST_MODIFIED_COL +
+                                     " INTEGER DEFAULT " + NOW_MILLIS + " NOT NULL," +
+                                     "FOREIGN KEY(" +
+                                     CmHomeContract.DataCardImage.DATA_CARD_ID_COL +
+                                     ") REFERENCES " + DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard._ID + "));");
+                    database.execSQL("INSERT INTO DataCardImage_v6 SELECT " +
+                                     CmHomeContract.DataCardImage._ID + ", " +
+                                     CmHomeContract.DataCardImage.DATA_CARD_ID_COL + ", " +
+                                     CmHomeContract.DataCardImage.IMAGE_URI_COL + ", " +
+                                     timestampToMillis(
+                                             CmHomeContract.DataCardImage.LAST_MODIFIED_COL) +
+                                     " FROM " + DATA_CARD_IMAGE_TABLE_NAME);
+                    database.execSQL(DROP_TABLE_STATEMENT + " " + DATA_CARD_IMAGE_TABLE_NAME);
+                    database.execSQL("ALTER TABLE DataCardImage_v6 RENAME TO " +
+                                     DATA_CARD_IMAGE_TABLE_NAME);
+
+                    database.execSQL("CREATE TABLE Tombstone_v6" +
+                                     "(" + BaseColumns._ID + " INTEGER PRIMARY KEY," +
+                                     TOMBSTONE_TABLE_COL + " TEXT NOT NULL," +
+                                     TOMBSTONE_ROW_ID_COL + " INTEGER NOT NULL," +
+                                     TOMBSTONE_DATE_DELETED_COL + " INTEGER DEFAULT " +
+                                     NOW_MILLIS + " NOT NULL);");
+                    database.execSQL("INSERT INTO Tombstone_v6 SELECT " + BaseColumns._ID +
+                                     ", " + TOMBSTONE_TABLE_COL + ", " + TOMBSTONE_ROW_ID_COL +
+                                     ", " + timestampToMillis(TOMBSTONE_DATE_DELETED_COL) +
+                                     " FROM " + TOMBSTONE_TABLE_NAME);
+                    database.execSQL(DROP_TABLE_STATEMENT + " " + TOMBSTONE_TABLE_NAME);
+                    database.execSQL("ALTER TABLE Tombstone_v6 RENAME TO " + TOMBSTONE_TABLE_NAME);
+
+                    database.execSQL("CREATE INDEX data_card_priority_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.PRIORITY_COL + ")");
+                    database.execSQL("CREATE INDEX data_card_last_modified_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.LAST_MODIFIED_COL + ")");
+                    database.execSQL("CREATE INDEX data_card_expires_at_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.EXPIRES_AT_COL + ")");
+                    database.execSQL("CREATE INDEX data_card_date_content_created_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL +
+                                     ")");
+                    database.execSQL("CREATE INDEX data_card_image_data_card_id_index ON " +
+                                     DATA_CARD_IMAGE_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCardImage.DATA_CARD_ID_COL + ")");
+                    database.execSQL("CREATE INDEX data_card_image_last_modified_index ON " +
+                                     DATA_CARD_IMAGE_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCardImage.LAST_MODIFIED_COL + ")");
+                    database.execSQL("CREATE INDEX tombstone_date_deleted_index ON " +
+                                     TOMBSTONE_TABLE_NAME +
+                                     "(" + TOMBSTONE_TABLE_COL + ", " +
+                                     TOMBSTONE_DATE_DELETED_COL + ")");
+
+                    database.execSQL(createTombstoneTrigger("data_card_tombstone_trigger",
+                                                            DATA_CARD_TABLE_NAME));
+                    database.execSQL(createTombstoneTrigger("data_card_image_tombstone_trigger",
+                                                            DATA_CARD_IMAGE_TABLE_NAME));
+                    database.execSQL("CREATE TRIGGER data_card_image_cascade_trigger " +
+                                     "AFTER DELETE ON " + DATA_CARD_TABLE_NAME +
+                                     " FOR EACH ROW BEGIN " +
+                                     "DELETE FROM " + DATA_CARD_IMAGE_TABLE_NAME +
+                                     " WHERE " + CmHomeContract.DataCardImage.DATA_CARD_ID_COL +
+                                     " = old." + CmHomeContract.DataCard._ID + "; END");
+                }
+            },
+            // Version 7: ranking scores, indexed to read the most relevant cards first.
+            new SchemaMigration(7) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    // Earlier versions of DataCard wrote the second action's uri as priority.
+                    // Those cards get the low priority that DataCard reads for them, 3.
+                    database.execSQL("UPDATE " + DATA_CARD_TABLE_NAME + " SET " +
+                                     CmHomeContract.DataCard.PRIORITY_COL + " = 3 WHERE " +
+                                     "typeof(" + CmHomeContract.DataCard.PRIORITY_COL + ")" +
+                                     " NOT IN ('integer', 'null')");
+                    database.execSQL("ALTER TABLE " + DATA_CARD_TABLE_NAME + " ADD COLUMN " +
+                                     CmHomeContract.DataCard.SCORE_COL +
+                                     " INTEGER DEFAULT 0 NOT NULL");
+                    database.execSQL("UPDATE " + DATA_CARD_TABLE_NAME + " SET " +
+                                     CmHomeContract.DataCard.SCORE_COL + " = " +
+                                     RankingScore.SQL_EXPRESSION);
+                    database.execSQL("CREATE INDEX data_card_score_index ON " +
+                                     DATA_CARD_TABLE_NAME +
+                                     "(" + CmHomeContract.DataCard.SCORE_COL + ", " +
+                                     CmHomeContract.DataCard._ID + ")");
+                }
+            },
+            // Version 8: a full-text index of the text of the cards, for searches.
+            new SchemaMigration(8) {
+                @Override
+                public void migrate(SQLiteDatabase database) {
+                    String columns = CmHomeContract.DataCard.TITLE_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.SMALL_TEXT_COL + ", " +
+                                     CmHomeContract.DataCard.BODY_TEXT_COL;
+                    String newValues = "new._id, new." + CmHomeContract.DataCard.TITLE_TEXT_COL +
+                                       ", new." + CmHomeContract.DataCard.SMALL_TEXT_COL +
+                                       ", new." + CmHomeContract.DataCard.BODY_TEXT_COL;
+                    String deleteOld = "DELETE FROM " + DATA_CARD_SEARCH_TABLE_NAME +
+                                       " WHERE docid = old._id;";
+                    String insertNew = "INSERT INTO " + DATA_CARD_SEARCH_TABLE_NAME +
+                                       "(docid, " + columns + ") VALUES (" + newValues + ");";
+
+                    database.execSQL("CREATE VIRTUAL TABLE " + DATA_CARD_SEARCH_TABLE_NAME +
+                                     " USING fts4(content=\"" + DATA_CARD_TABLE_NAME + "\", " +
+                                     columns + ")");
+                    database.execSQL("INSERT INTO " + DATA_CARD_SEARCH_TABLE_NAME + "(" +
+                                     DATA_CARD_SEARCH_TABLE_NAME + ") VALUES ('rebuild')");
+
+                    // The index reads the old text from DataCard to remove it, so it has to be
+                    // removed before the row changes. Updates of other columns leave it as is.
+                    database.execSQL("CREATE TRIGGER data_card_search_insert_trigger " +
+                                     "AFTER INSERT ON " + DATA_CARD_TABLE_NAME +
+                                     " FOR EACH ROW BEGIN " + insertNew + " END");
+                    database.execSQL("CREATE TRIGGER data_card_search_before_update_trigger " +
+                                     "BEFORE UPDATE OF " + columns + " ON " +
+                                     DATA_CARD_TABLE_NAME + " FOR EACH ROW BEGIN " + deleteOld +
+                                     " END");
+                    database.execSQL("CREATE TRIGGER data_card_search_after_update_trigger " +
+                                     "AFTER UPDATE OF " + columns + " ON " +
+                                     DATA_CARD_TABLE_NAME + " FOR EACH ROW BEGIN " + insertNew +
+                                     " END");
+                    database.execSQL("CREATE TRIGGER data_card_search_delete_trigger " +
+                                     "BEFORE DELETE ON " + DATA_CARD_TABLE_NAME +
+                                     " FOR EACH ROW BEGIN " + deleteOld + " END");
+                }
+            });
+
+    private static String createTombstoneTrigger(String name, String table) {
+        return "CREATE TRIGGER " + name + " " +
+               "AFTER DELETE ON " + table + " FOR EACH ROW BEGIN " +
+               "INSERT INTO " + TOMBSTONE_TABLE_NAME +
+               "(" + TOMBSTONE_TABLE_COL + ", " + TOMBSTONE_ROW_ID_COL + ")" +
+               " VALUES ('" + table + "', old._id); END";
+    }
+
     public CmHomeDatabaseHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase database) {
         database.execSQL(DATA_CARD_TABLE_CREATE);
+        database.execSQL(DATA_CARD_UPDATE_TIME_TRIGGER);
         database.execSQL(DATA_CARD_IMAGE_TABLE_CREATE);
+        SCHEMA_MIGRATOR.migrate(database, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+        if (SCHEMA_MIGRATOR.canMigrate(oldVersion, newVersion)) {
+            SCHEMA_MIGRATOR.migrate(database, oldVersion, newVersion);
+            return;
+        }
+
         Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion +
                    ". All existing data will be destroyed.");
-        database.execSQL(DROP_TABLE_STATEMENT + " " + DATA_CARD_TABLE_NAME);
-        database.execSQL(DROP_TABLE_STATEMENT + " " + DATA_CARD_IMAGE_TABLE_NAME);
+        recreate(database);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+        Log.w(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion +
+                   ". All existing data will be destroyed.");
+        recreate(database);
+    }
+
+    private void recreate(SQLiteDatabase database) {
+        for (String table : ALL_TABLES) {
+            database.execSQL(DROP_TABLE_STATEMENT + " " + table);
+        }
         onCreate(database);
     }
+
+    /**
+     * Returns the migrations that make up the schema history, for example to upgrade
+     * fixture databases of older versions.
+     */
+    public static SchemaMigrator getSchemaMigrator() {
+        return SCHEMA_MIGRATOR;
+    }
 }
@@ -0,0 +1,89 @@
+package org.cyanogenmod.launcher.home.api.db;
+
+import android.content.ContentValues;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+/**
+ * Computes the ranking score of cards, stored in {@link CmHomeContract.DataCard#SCORE_COL}.
+ *
+ * The score is a point in time, in milliseconds since the epoch: the date the content was
+ * created, moved forward by a boost for higher priority cards and for cards that expire.
+ * Since recency is measured from a fixed date rather than from the current time, the order of
+ * two cards never changes as time passes, so the score is only computed when a card is
+ * written, and the most relevant cards can be read straight from an index.
+ */
+public class RankingScore {
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    // A high priority card ranks like a card created a day later, a medium priority card
+    // like one created half a day later.
+    private static final long HIGH_PRIORITY_BOOST_MS = 24 * HOUR_MS;
+    private static final long MID_PRIORITY_BOOST_MS  = 12 * HOUR_MS;
+    // Cards that expire are time sensitive, and rank like a card created a few hours later.
+    private static final long EXPIRING_BOOST_MS      = 6 * HOUR_MS;
+
+    private static final int PRIORITY_HIGH = 1;
+    private static final int PRIORITY_MID  = 2;
+
+    /**
+     * Computes the score of a card in SQL, from the columns of its row.
+     */
+    public static final String SQL_EXPRESSION =
+            CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL +
+            " + CASE " + CmHomeContract.DataCard.PRIORITY_COL +
+            " WHEN " + PRIORITY_HIGH + " THEN " + HIGH_PRIORITY_BOOST_MS +
+            " WHEN " + PRIORITY_MID + " THEN " + MID_PRIORITY_BOOST_MS +
+            " ELSE 0 END" +
+            " + CASE WHEN " + CmHomeContract.DataCard.EXPIRES_AT_COL + " IS NULL THEN 0" +
+            " ELSE " + EXPIRING_BOOST_MS + " END";
+
+    private RankingScore() {
+    }
+
+    /**
+     * Returns whether writing the values may change the score of a card.
+     */
+    public static boolean affectsScore(ContentValues values) {
+        return values.containsKey(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL) ||
+               values.containsKey(CmHomeContract.DataCard.PRIORITY_COL) ||
+               values.containsKey(CmHomeContract.DataCard.EXPIRES_AT_COL);
+    }
+
+    /**
+     * Adds the score to the values of a card, computed the same way as
+     * {@link #SQL_EXPRESSION}, in place of any score the values hold.
+     * @param complete True if columns missing from the values are null in the row, as for
+     *                 an insert.
+     * @return The values with the score, or the values as they are if the score depends on
+     *         columns they do not hold.
+     */
+    public static ContentValues addScore(ContentValues values, boolean complete) {
+        // The score is only ever computed here, never taken from a writer.
+        if (values.containsKey(CmHomeContract.DataCard.SCORE_COL)) {
+            values = new ContentValues(values);
+            values.remove(CmHomeContract.DataCard.SCORE_COL);
+        }
+
+        Long contentCreated = values.getAsLong(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL);
+        if (contentCreated == null ||
+            (!complete && (!values.containsKey(CmHomeContract.DataCard.PRIORITY_COL) ||
+                           !values.containsKey(CmHomeContract.DataCard.EXPIRES_AT_COL)))) {
+            return values;
+        }
+
+        long score = contentCreated;
+        Integer priority = values.getAsInteger(CmHomeContract.DataCard.PRIORITY_COL);
+        if (priority != null && priority == PRIORITY_HIGH) {
+            score += HIGH_PRIORITY_BOOST_MS;
+        } else if (priority != null && priority == PRIORITY_MID) {
+            score += MID_PRIORITY_BOOST_MS;
+        }
+        if (values.getAsLong(CmHomeContract.DataCard.EXPIRES_AT_COL) != null) {
+            score += EXPIRING_BOOST_MS;
+        }
+
+        ContentValues scoredValues = new ContentValues(values);
+        scoredValues.put(CmHomeContract.DataCard.SCORE_COL, score);
+        return scoredValues;
+    }
+}
@@ -0,0 +1,28 @@
+package org.cyanogenmod.launcher.home.api.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A single step of the CmHomeDatabaseHelper schema history. It upgrades a database from the
+ * previous version to {@link #getVersion()} in place, keeping the existing data.
+ */
+public abstract class SchemaMigration {
+    private final int mVersion;
+
+    /**
+     * @param version The schema version this step upgrades the database to
+     */
+    public SchemaMigration(int version) {
+        mVersion = version;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Upgrades the database from version {@link #getVersion()} - 1. This is called inside a
+     * transaction, so a step that throws leaves the database untouched.
+     */
+    public abstract void migrate(SQLiteDatabase database);
+}
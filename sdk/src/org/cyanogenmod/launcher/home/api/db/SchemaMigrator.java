@@ -0,0 +1,73 @@
+package org.cyanogenmod.launcher.home.api.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Upgrades a database step by step through a chain of {@link SchemaMigration}s.
+ * The migrations only depend on the SQLiteDatabase they are given, so they can be run
+ * against any fixture database of an older version.
+ */
+public class SchemaMigrator {
+    private static final String TAG = "SchemaMigrator";
+
+    private final SparseArray<SchemaMigration> mMigrations = new SparseArray<SchemaMigration>();
+    private int mLatestVersion;
+
+    public SchemaMigrator(SchemaMigration... migrations) {
+        for (SchemaMigration migration : migrations) {
+            int version = migration.getVersion();
+            if (mMigrations.get(version) != null) {
+                throw new IllegalArgumentException("Duplicate migration to version " + version);
+            }
+            mMigrations.put(version, migration);
+            mLatestVersion = Math.max(mLatestVersion, version);
+        }
+    }
+
+    /**
+     * Returns the highest version the migrations can upgrade a database to.
+     */
+    public int getLatestVersion() {
+        return mLatestVersion;
+    }
+
+    /**
+     * Returns true if there is a migration for every step from oldVersion to newVersion.
+     */
+    public boolean canMigrate(int oldVersion, int newVersion) {
+        if (oldVersion > newVersion) {
+            return false;
+        }
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            if (mMigrations.get(version) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies every migration from oldVersion + 1 up to and including newVersion, in order,
+     * within a single transaction.
+     * @throws IllegalArgumentException if a step between the two versions is missing.
+     */
+    public void migrate(SQLiteDatabase database, int oldVersion, int newVersion) {
+        if (!canMigrate(oldVersion, newVersion)) {
+            throw new IllegalArgumentException("No migration path from version " + oldVersion +
+                                               " to " + newVersion);
+        }
+
+        database.beginTransaction();
+        try {
+            for (int version = oldVersion + 1; version <= newVersion; version++) {
+                Log.i(TAG, "Migrating database to version " + version);
+                mMigrations.get(version).migrate(database);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.util.Log;
+
+import org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper;
+
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.DATA_CARD_IMAGE_TABLE_NAME;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.DATA_CARD_TABLE_NAME;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.TOMBSTONE_DATE_DELETED_COL;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.TOMBSTONE_TABLE_COL;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.TOMBSTONE_TABLE_NAME;
+
+/**
+ * Deletes the cards that CmHomeContentProvider no longer needs to keep: expired cards, and
+ * the lowest priority cards beyond the maximum card count, where cards without a priority
+ * count as low priority cards. Their images are deleted along with
+ * them by the database. Tombstones older than
+ * {@link CmHomeContract#TOMBSTONE_RETENTION_MILLIS} are deleted as well.
+ *
+ * Pruning runs on a background Handler, after writes to the cards and whenever the next card
+ * expires. Rows are deleted in small transactions, so that publishers and CM Home are not
+ * held up for long. When nothing needs to be pruned, a run costs four index lookups, plus a
+ * count of the cards if there is a maximum.
+ */
+class CardPruner {
+    private static final String TAG = "CardPruner";
+
+    private static final int  BATCH_SIZE = 50;
+    private static final long WRITE_DELAY_MS = 1000;
+
+    // Cards without a priority are read as low priority cards by DataCard, and ranked as
+    // such, so they are pruned along with them.
+    private static final int  PRIORITY_LOW = 3;
+
+    interface Callback {
+        /**
+         * Called on the pruner's Handler after each batch of cards has been deleted.
+         */
+        void onCardsPruned();
+    }
+
+    private final CmHomeDatabaseHelper mDatabaseHelper;
+    private final Handler              mHandler;
+    private final int                  mMaxCards;
+    private final Callback             mCallback;
+
+    // The uptime at which the next run is scheduled, or 0 if none is.
+    private long mScheduledTime;
+
+    private final Runnable mPruneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CardPruner.this) {
+                mScheduledTime = 0;
+            }
+            // The pruner runs on the provider's own thread, where an exception would take the
+            // host process down. The next write schedules another run.
+            try {
+                prune();
+            } catch (SQLException e) {
+                Log.e(TAG, "Unable to prune cards", e);
+            }
+        }
+    };
+
+    /**
+     * @param handler The Handler that pruning runs on
+     * @param maxCards The maximum number of cards to keep, or 0 to keep any number of cards
+     */
+    CardPruner(CmHomeDatabaseHelper databaseHelper, Handler handler, int maxCards,
+               Callback callback) {
+        mDatabaseHelper = databaseHelper;
+        mHandler = handler;
+        mMaxCards = maxCards;
+        mCallback = callback;
+    }
+
+    /**
+     * Schedules a run shortly after cards were written, so that the writes of a sync share
+     * a single run.
+     */
+    void onCardsWritten() {
+        schedule(WRITE_DELAY_MS);
+    }
+
+    /**
+     * Schedules a run after the given delay, unless one is already scheduled to run sooner.
+     */
+    synchronized void schedule(long delayMillis) {
+        long time = SystemClock.uptimeMillis() + Math.max(delayMillis, 0);
+        if (mScheduledTime != 0 && mScheduledTime <= time) {
+            return;
+        }
+        mHandler.removeCallbacks(mPruneRunnable);
+        mHandler.postAtTime(mPruneRunnable, time);
+        mScheduledTime = time;
+    }
+
+    synchronized void cancel() {
+        mHandler.removeCallbacks(mPruneRunnable);
+        mScheduledTime = 0;
+    }
+
+    private void prune() {
+        SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+        long now = System.currentTimeMillis();
+
+        // The bound is a number, so it is safe to inline, and compares as one.
+        deleteCards(db, CmHomeContract.DataCard.EXPIRES_AT_COL + " <= " + now, null,
+                    Long.MAX_VALUE);
+
+        if (mMaxCards > 0) {
+            long excess = DatabaseUtils.queryNumEntries(db, DATA_CARD_TABLE_NAME) - mMaxCards;
+            if (excess > 0) {
+                // Higher priority values are less important; the oldest cards go first.
+                deleteCards(db, null, "IFNULL(" + CmHomeContract.DataCard.PRIORITY_COL + ", " +
+                                      PRIORITY_LOW + ") DESC, " +
+                                      CmHomeContract.DataCard._ID + " ASC", excess);
+            }
+        }
+
+        long tombstoneBound = now - CmHomeContract.TOMBSTONE_RETENTION_MILLIS;
+        deleteTombstones(db, DATA_CARD_TABLE_NAME, tombstoneBound);
+        deleteTombstones(db, DATA_CARD_IMAGE_TABLE_NAME, tombstoneBound);
+
+        scheduleNextExpiration(db, now);
+    }
+
+    /**
+     * Deletes up to count cards matching the selection, in the given order, one batch per
+     * transaction.
+     */
+    private void deleteCards(SQLiteDatabase db, String selection, String orderBy, long count) {
+        while (count > 0) {
+            int limit = (int) Math.min(count, BATCH_SIZE);
+            StringBuilder ids = new StringBuilder();
+            Cursor cursor = db.query(DATA_CARD_TABLE_NAME,
+                                     new String[]{CmHomeContract.DataCard._ID},
+                                     selection,
+                                     null,
+                                     null,
+                                     null,
+                                     orderBy,
+                                     String.valueOf(limit));
+            try {
+                while (cursor.moveToNext()) {
+                    if (ids.length() > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (ids.length() == 0) {
+                return;
+            }
+
+            int deleteCount;
+            db.beginTransaction();
+            try {
+                deleteCount = db.delete(DATA_CARD_TABLE_NAME,
+                                        CmHomeContract.DataCard._ID + " IN (" + ids + ")",
+                                        null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if (deleteCount == 0) {
+                return;
+            }
+            mCallback.onCardsPruned();
+            count -= deleteCount;
+        }
+    }
+
+    /**
+     * Deletes the tombstones of a table older than the given time, one batch per transaction.
+     * They are selected by table, so that the lookup uses the tombstone index.
+     */
+    private void deleteTombstones(SQLiteDatabase db, String table, long deletedBefore) {
+        String selection = BaseColumns._ID + " IN (SELECT " + BaseColumns._ID + " FROM " +
+                           TOMBSTONE_TABLE_NAME + " WHERE " + TOMBSTONE_TABLE_COL + " = ? AND " +
+                           TOMBSTONE_DATE_DELETED_COL + " < ? LIMIT " + BATCH_SIZE + ")";
+        String[] selectionArgs = {table, String.valueOf(deletedBefore)};
+        int deleteCount;
+        do {
+            db.beginTransaction();
+            try {
+                deleteCount = db.delete(TOMBSTONE_TABLE_NAME, selection, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } while (deleteCount == BATCH_SIZE);
+    }
+
+    private void scheduleNextExpiration(SQLiteDatabase db, long now) {
+        Cursor cursor = db.query(DATA_CARD_TABLE_NAME,
+                                 new String[]{"MIN(" + CmHomeContract.DataCard.EXPIRES_AT_COL +
+                                              ")"},
+                                 null, null, null, null, null);
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                schedule(cursor.getLong(0) - now);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
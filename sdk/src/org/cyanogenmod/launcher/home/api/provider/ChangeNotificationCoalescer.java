@@ -0,0 +1,137 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses the change notifications sent by CmHomeContentProvider. Every notification
+ * makes CM Home re-query its cursor, so changes are collected over a short window and
+ * delivered once per affected uri. Several changed items of the same list are delivered
+ * as a single notification on the list uri, which also reaches the observers of the items.
+ */
+class ChangeNotificationCoalescer {
+    private final ContentResolver mContentResolver;
+    private final Handler         mHandler;
+    private final long            mDelayMillis;
+    private final ProviderMetrics mMetrics;
+
+    private final Set<Uri> mPendingUris = new HashSet<Uri>();
+
+    private final AtomicLong mRequestedCount = new AtomicLong();
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param contentResolver The ContentResolver to deliver notifications with
+     * @param handler The Handler that delayed notifications are delivered on
+     * @param delayMillis How long to collect changes before notifying, or 0 to notify
+     *                    immediately.
+     * @param metrics The metrics that the notifications delivered are recorded in
+     */
+    ChangeNotificationCoalescer(ContentResolver contentResolver, Handler handler,
+                                long delayMillis, ProviderMetrics metrics) {
+        mContentResolver = contentResolver;
+        mHandler = handler;
+        mDelayMillis = delayMillis;
+        mMetrics = metrics;
+    }
+
+    void notifyChange(Uri uri) {
+        notifyChanges(Collections.singleton(uri));
+    }
+
+    /**
+     * Schedules notifications for all of the given uris, for example the uris changed by a
+     * batch that just committed.
+     */
+    void notifyChanges(Collection<Uri> uris) {
+        mRequestedCount.addAndGet(uris.size());
+        if (mDelayMillis <= 0) {
+            deliver(uris);
+            return;
+        }
+
+        synchronized (mPendingUris) {
+            boolean scheduled = !mPendingUris.isEmpty();
+            mPendingUris.addAll(uris);
+            if (!scheduled) {
+                mHandler.postDelayed(mFlushRunnable, mDelayMillis);
+            }
+        }
+    }
+
+    /**
+     * Delivers all pending notifications right away.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (mPendingUris) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            uris = new ArrayList<Uri>(mPendingUris);
+            mPendingUris.clear();
+        }
+        deliver(uris);
+    }
+
+    private void deliver(Collection<Uri> uris) {
+        for (Uri uri : collapse(uris)) {
+            mContentResolver.notifyChange(uri, null);
+            mDeliveredCount.incrementAndGet();
+            mMetrics.recordNotifyChange();
+        }
+    }
+
+    /**
+     * Replaces item uris by their list uri when more than one item of the list, or the list
+     * itself, changed.
+     */
+    private static Collection<Uri> collapse(Collection<Uri> uris) {
+        if (uris.size() < 2) {
+            return uris;
+        }
+
+        Map<Uri, Uri> uriByList = new HashMap<Uri, Uri>();
+        for (Uri uri : uris) {
+            Uri listUri = getListUri(uri);
+            if (uriByList.containsKey(listUri)) {
+                uriByList.put(listUri, listUri);
+            } else {
+                uriByList.put(listUri, uri);
+            }
+        }
+        return uriByList.values();
+    }
+
+    private static Uri getListUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() < 2) {
+            return uri;
+        }
+        return uri.buildUpon().path(segments.get(0)).build();
+    }
+
+    long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    long getSuppressedCount() {
+        return mRequestedCount.get() - mDeliveredCount.get();
+    }
+}
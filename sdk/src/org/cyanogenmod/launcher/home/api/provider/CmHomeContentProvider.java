@@ -1,70 +1,473 @@
 package org.cyanogenmod.launcher.home.api.provider;
 
+import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper;
+import org.cyanogenmod.launcher.home.api.db.RankingScore;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.IllegalArgumentException;
 import java.lang.Override;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.DATA_CARD_IMAGE_TABLE_NAME;
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.DATA_CARD_SEARCH_TABLE_NAME;
 import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.DATA_CARD_TABLE_NAME;
 
 public class CmHomeContentProvider extends ContentProvider {
+    private static final String TAG = "CmHomeContentProvider";
+
+    /**
+     * Name of the meta-data in the provider declaration that sets how long change
+     * notifications are collected before they are delivered, in milliseconds.
+     * Set it to 0 to deliver every notification immediately.
+     */
+    public static final String META_DATA_NOTIFY_DELAY_MS =
+            "org.cyanogenmod.launcher.home.api.NOTIFY_DELAY_MS";
+    private static final int DEFAULT_NOTIFY_DELAY_MS = 100;
+
+    /**
+     * Name of the meta-data in the provider declaration that sets how much memory the cache
+     * of rows served on the item uris may take up, in kilobytes. Set it to 0 to disable the
+     * cache.
+     */
+    public static final String META_DATA_ROW_CACHE_SIZE_KB =
+            "org.cyanogenmod.launcher.home.api.ROW_CACHE_SIZE_KB";
+    private static final int DEFAULT_ROW_CACHE_SIZE_KB = 256;
+
+    /**
+     * Name of the meta-data in the provider declaration that sets the maximum number of cards
+     * to keep. The lowest priority cards beyond it are deleted, oldest first; cards without a
+     * priority count as priority 3 cards. Leave it out or set it to 0 to keep any number of
+     * cards.
+     */
+    public static final String META_DATA_MAX_CARDS =
+            "org.cyanogenmod.launcher.home.api.MAX_CARDS";
+
+    /**
+     * Name of the meta-data in the provider declaration that sets how much disk space the
+     * cached image thumbnails may take up, in kilobytes.
+     */
+    public static final String META_DATA_THUMBNAIL_CACHE_SIZE_KB =
+            "org.cyanogenmod.launcher.home.api.THUMBNAIL_CACHE_SIZE_KB";
+    private static final int DEFAULT_THUMBNAIL_CACHE_SIZE_KB = 4 * 1024;
+
     CmHomeDatabaseHelper mCmHomeDatabaseHelper;
+    private HandlerThread               mWorkerThread;
+    private Handler                     mWorkerHandler;
+    private ChangeNotificationCoalescer mNotificationCoalescer;
+    private final StatementCache        mStatementCache = new StatementCache();
+    private RowCache                    mRowCache;
+    private CardPruner                  mCardPruner;
+    private ImageStore                  mImageStore;
+    private ThumbnailCache              mThumbnailCache;
+
+    /**
+     * Holds the uris changed by the batch the current thread is applying in
+     * {@link #applyBatch(ArrayList)}, so that their change notifications are deferred until
+     * the batch commits.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChangedUris = new ThreadLocal<Set<Uri>>();
+
+    /**
+     * Counts the writes to cards that were skipped because their content hash was unchanged.
+     */
+    private final AtomicLong mUnchangedWriteCount = new AtomicLong();
+
+    /**
+     * The last modification date set by {@link #setLastModified}. It is only accessed with
+     * the write lock of the database held.
+     */
+    private long mLastChangeToken;
+
+    private final ProviderMetrics mMetrics = new ProviderMetrics(MATCH_NAMES);
 
     private static final int DATA_CARD_LIST = 1;
     private static final int DATA_CARD_ITEM = 2;
     private static final int DATA_CARD_IMAGE_LIST = 3;
     private static final int DATA_CARD_IMAGE_ITEM = 4;
+    private static final int DATA_CARD_CHANGES = 5;
+    private static final int DATA_CARD_IMAGE_CHANGES = 6;
+    private static final int DATA_CARD_WITH_IMAGES = 7;
+    private static final int IMAGE_FILE = 8;
+    private static final int THUMBNAIL = 9;
+    private static final int DATA_CARD_TOP = 10;
+    private static final int DATA_CARD_SEARCH = 11;
+    // One more than the largest match code.
+    private static final int MATCH_COUNT = 12;
     private static final UriMatcher URI_MATCHER;
+    // The path pattern of each match code, to name them in the metrics.
+    private static final String[] MATCH_NAMES = new String[MATCH_COUNT];
+    // Each publisher declares the provider under its own authority, and the system only
+    // routes the uris of those authorities here, so uris are matched on their path alone.
+    private static final String ANY_AUTHORITY = "*";
+
+    // Results of a write to the row of an item uri.
+    private static final int ROW_MISSING   = 0;
+    private static final int ROW_CHANGED   = 1;
+    private static final int ROW_UNCHANGED = 2;
+
+    // The number of cards whose scores are recomputed per statement after a list update.
+    private static final int SCORE_UPDATE_BATCH_SIZE = 500;
+
+    private static final String DATA_CARD_WITH_IMAGES_TABLES =
+            DATA_CARD_TABLE_NAME + " LEFT OUTER JOIN " + DATA_CARD_IMAGE_TABLE_NAME + " ON (" +
+            DATA_CARD_TABLE_NAME + "." + CmHomeContract.DataCard._ID + " = " +
+            DATA_CARD_IMAGE_TABLE_NAME + "." + CmHomeContract.DataCardImage.DATA_CARD_ID_COL +
+            ")";
+    private static final String DATA_CARD_WITH_IMAGES_SORT_ORDER =
+            DATA_CARD_TABLE_NAME + "." + CmHomeContract.DataCard.PRIORITY_COL + " ASC, " +
+            DATA_CARD_TABLE_NAME + "." + CmHomeContract.DataCard._ID + " ASC, " +
+            CmHomeContract.DataCard.IMAGE_ID_COL + " ASC";
+    private static final String DATA_CARD_TOP_SORT_ORDER =
+            CmHomeContract.DataCard.SCORE_COL + " DESC, " + CmHomeContract.DataCard._ID + " DESC";
+    private static final Map<String, String> DATA_CARD_WITH_IMAGES_PROJECTION_MAP =
+            new HashMap<String, String>();
+
+    private static final String DATA_CARD_SEARCH_TABLES =
+            DATA_CARD_SEARCH_TABLE_NAME + " JOIN " + DATA_CARD_TABLE_NAME + " ON (" +
+            DATA_CARD_TABLE_NAME + "." + CmHomeContract.DataCard._ID + " = " +
+            DATA_CARD_SEARCH_TABLE_NAME + ".docid)";
+    // Cards with more matching terms first. Each match adds an entry of four numbers,
+    // separated by spaces, to offsets(), so the number of matches is the number of spaces
+    // plus one, divided by four.
+    private static final String DATA_CARD_SEARCH_OFFSETS =
+            "offsets(" + DATA_CARD_SEARCH_TABLE_NAME + ")";
+    private static final String DATA_CARD_SEARCH_SORT_ORDER =
+            "(length(" + DATA_CARD_SEARCH_OFFSETS + ") - length(replace(" +
+            DATA_CARD_SEARCH_OFFSETS + ", ' ', '')) + 1) / 4 DESC, " +
+            DATA_CARD_TABLE_NAME + "." + CmHomeContract.DataCard.SCORE_COL + " DESC, " +
+            DATA_CARD_TABLE_NAME + "." + CmHomeContract.DataCard._ID + " DESC";
+    private static final String[] DATA_CARD_SEARCH_PROJECTION =
+            new String[CmHomeContract.DataCard.PROJECTION_ALL.length + 1];
+    private static final Map<String, String> DATA_CARD_SEARCH_PROJECTION_MAP =
+            new HashMap<String, String>();
+    private static final Map<String, String> DATA_CARD_SEARCH_WITH_SNIPPETS_PROJECTION_MAP =
+            new HashMap<String, String>();
+    // Splits search terms into the words the full-text index is made of.
+    private static final Pattern SEARCH_TERM_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final String DATA_CARD_CHANGES_QUERY =
+            buildChangesQuery(DATA_CARD_TABLE_NAME, CmHomeContract.DataCard.PROJECTION_ALL,
+                              CmHomeContract.DataCard.LAST_MODIFIED_COL);
+    private static final String DATA_CARD_IMAGE_CHANGES_QUERY =
+            buildChangesQuery(DATA_CARD_IMAGE_TABLE_NAME,
+                              CmHomeContract.DataCardImage.PROJECTION_ALL,
+                              CmHomeContract.DataCardImage.LAST_MODIFIED_COL);
 
     static {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
-        URI_MATCHER.addURI(CmHomeContract.AUTHORITY,
-                           "datacard",
-                           DATA_CARD_LIST);
-        URI_MATCHER.addURI(CmHomeContract.AUTHORITY,
-                           "datacard/#",
-                           DATA_CARD_ITEM);
-        URI_MATCHER.addURI(CmHomeContract.AUTHORITY,
-                           "datacardimage",
-                           DATA_CARD_IMAGE_LIST);
-        URI_MATCHER.addURI(CmHomeContract.AUTHORITY,
-                           "datacardimage/#",
-                           DATA_CARD_IMAGE_ITEM);
+        addUri("datacard", DATA_CARD_LIST);
+        addUri("datacard/#", DATA_CARD_ITEM);
+        addUri("datacardimage", DATA_CARD_IMAGE_LIST);
+        addUri("datacardimage/#", DATA_CARD_IMAGE_ITEM);
+        addUri("datacard/changes", DATA_CARD_CHANGES);
+        addUri("datacardimage/changes", DATA_CARD_IMAGE_CHANGES);
+        addUri("datacard/withimages", DATA_CARD_WITH_IMAGES);
+        addUri("imagefile/*", IMAGE_FILE);
+        addUri("thumbnail/#", THUMBNAIL);
+        addUri("datacard/top", DATA_CARD_TOP);
+        addUri("datacard/search", DATA_CARD_SEARCH);
+
+        for (String column : CmHomeContract.DataCard.PROJECTION_ALL) {
+            DATA_CARD_WITH_IMAGES_PROJECTION_MAP.put(column,
+                    DATA_CARD_TABLE_NAME + "." + column + " AS " + column);
+        }
+        DATA_CARD_WITH_IMAGES_PROJECTION_MAP.put(CmHomeContract.DataCard.IMAGE_ID_COL,
+                DATA_CARD_IMAGE_TABLE_NAME + "." + CmHomeContract.DataCardImage._ID + " AS " +
+                CmHomeContract.DataCard.IMAGE_ID_COL);
+        DATA_CARD_WITH_IMAGES_PROJECTION_MAP.put(CmHomeContract.DataCard.IMAGE_URI_COL,
+                DATA_CARD_IMAGE_TABLE_NAME + "." + CmHomeContract.DataCardImage.IMAGE_URI_COL +
+                " AS " + CmHomeContract.DataCard.IMAGE_URI_COL);
+
+        String[] columns = CmHomeContract.DataCard.PROJECTION_ALL;
+        System.arraycopy(columns, 0, DATA_CARD_SEARCH_PROJECTION, 0, columns.length);
+        DATA_CARD_SEARCH_PROJECTION[columns.length] = CmHomeContract.DataCard.SNIPPET_COL;
+        for (String column : columns) {
+            DATA_CARD_SEARCH_PROJECTION_MAP.put(column,
+                    DATA_CARD_TABLE_NAME + "." + column + " AS " + column);
+        }
+        DATA_CARD_SEARCH_WITH_SNIPPETS_PROJECTION_MAP.putAll(DATA_CARD_SEARCH_PROJECTION_MAP);
+        DATA_CARD_SEARCH_PROJECTION_MAP.put(CmHomeContract.DataCard.SNIPPET_COL,
+                "NULL AS " + CmHomeContract.DataCard.SNIPPET_COL);
+        DATA_CARD_SEARCH_WITH_SNIPPETS_PROJECTION_MAP.put(CmHomeContract.DataCard.SNIPPET_COL,
+                "snippet(" + DATA_CARD_SEARCH_TABLE_NAME + ", '" +
+                CmHomeContract.DataCard.SNIPPET_MATCH_START + "', '" +
+                CmHomeContract.DataCard.SNIPPET_MATCH_END + "', '...', -1, 12) AS " +
+                CmHomeContract.DataCard.SNIPPET_COL);
+    }
+
+    private static void addUri(String path, int match) {
+        URI_MATCHER.addURI(ANY_AUTHORITY, path, match);
+        MATCH_NAMES[match] = path;
+    }
+
+    /**
+     * Builds the union of the rows of a table modified since the token bound to ?1, and the
+     * tombstones of its rows deleted since then. Both sides are served by an index on their
+     * date column.
+     */
+    private static String buildChangesQuery(String table, String[] columns,
+                                            String lastModifiedColumn) {
+        StringBuilder query = new StringBuilder("SELECT ");
+        for (String column : columns) {
+            query.append(column).append(", ");
+        }
+        query.append("0 AS ").append(CmHomeContract.DELETED_COL).append(", ")
+             .append(lastModifiedColumn).append(" AS ").append(CmHomeContract.CHANGE_TOKEN_COL)
+             .append(" FROM ").append(table)
+             .append(" WHERE ").append(lastModifiedColumn).append(" >= ?1");
+
+        query.append(" UNION ALL SELECT ");
+        for (String column : columns) {
+            if (BaseColumns._ID.equals(column)) {
+                query.append(CmHomeDatabaseHelper.TOMBSTONE_ROW_ID_COL);
+            } else {
+                query.append("NULL");
+            }
+            query.append(" AS ").append(column).append(", ");
+        }
+        query.append("1 AS ").append(CmHomeContract.DELETED_COL).append(", ")
+             .append(CmHomeDatabaseHelper.TOMBSTONE_DATE_DELETED_COL).append(" AS ")
+             .append(CmHomeContract.CHANGE_TOKEN_COL)
+             .append(" FROM ").append(CmHomeDatabaseHelper.TOMBSTONE_TABLE_NAME)
+             .append(" WHERE ").append(CmHomeDatabaseHelper.TOMBSTONE_TABLE_COL)
+             .append(" = '").append(table).append("' AND ")
+             .append(CmHomeDatabaseHelper.TOMBSTONE_DATE_DELETED_COL).append(" >= ?1");
+        return query.toString();
     }
 
     @Override
     public boolean onCreate() {
         mCmHomeDatabaseHelper = new CmHomeDatabaseHelper(getContext());
+
+        mWorkerThread = new HandlerThread(TAG);
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
+
+        Bundle metaData = getMetaData();
+        int notifyDelay = metaData.getInt(META_DATA_NOTIFY_DELAY_MS, DEFAULT_NOTIFY_DELAY_MS);
+        mNotificationCoalescer =
+                new ChangeNotificationCoalescer(getContext().getContentResolver(),
+                                                mWorkerHandler,
+                                                notifyDelay,
+                                                mMetrics);
+        int rowCacheSize = metaData.getInt(META_DATA_ROW_CACHE_SIZE_KB,
+                                           DEFAULT_ROW_CACHE_SIZE_KB);
+        mRowCache = new RowCache(rowCacheSize * 1024);
+
+        mCardPruner = new CardPruner(mCmHomeDatabaseHelper,
+                                     mWorkerHandler,
+                                     metaData.getInt(META_DATA_MAX_CARDS, 0),
+                                     new CardPruner.Callback() {
+                                         @Override
+                                         public void onCardsPruned() {
+                                             notifyChange(CmHomeContract.DataCard.CONTENT_URI);
+                                             notifyChange(
+                                                     CmHomeContract.DataCardImage.CONTENT_URI);
+                                         }
+                                     });
+        // Cards may have expired while the provider was not running.
+        mCardPruner.onCardsWritten();
+
+        mImageStore = new ImageStore(new File(getContext().getFilesDir(), "images"),
+                                     mCmHomeDatabaseHelper,
+                                     mWorkerHandler);
+        int thumbnailCacheSize = metaData.getInt(META_DATA_THUMBNAIL_CACHE_SIZE_KB,
+                                                 DEFAULT_THUMBNAIL_CACHE_SIZE_KB);
+        mThumbnailCache = new ThumbnailCache(new File(getContext().getCacheDir(), "thumbnails"),
+                                             thumbnailCacheSize * 1024L);
         return true;
     }
 
+    @Override
+    public void shutdown() {
+        mCardPruner.cancel();
+        mImageStore.cancel();
+        mNotificationCoalescer.flush();
+        mStatementCache.clear();
+        mRowCache.clear();
+        mWorkerThread.quit();
+        mCmHomeDatabaseHelper.close();
+    }
+
+    /**
+     * Returns the meta-data declared for this provider in the manifest, or an empty Bundle.
+     */
+    private Bundle getMetaData() {
+        try {
+            ProviderInfo info = getContext().getPackageManager().getProviderInfo(
+                    new ComponentName(getContext(), getClass()), PackageManager.GET_META_DATA);
+            if (info.metaData != null) {
+                return info.metaData;
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unable to read the provider meta-data, using defaults.", e);
+        } catch (UnsupportedOperationException e) {
+            // Isolated contexts, such as that of ProviderTestCase2, have no package manager.
+            Log.w(TAG, "No package manager, using the default meta-data.");
+        }
+        return new Bundle();
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        long startNanos = System.nanoTime();
+        try {
+            return callMethod(method, arg, extras);
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_CALL, startNanos, 0);
+        }
+    }
+
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (CmHomeContract.METHOD_GET_NOTIFICATION_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(CmHomeContract.KEY_NOTIFICATIONS_DELIVERED,
+                           mNotificationCoalescer.getDeliveredCount());
+            result.putLong(CmHomeContract.KEY_NOTIFICATIONS_SUPPRESSED,
+                           mNotificationCoalescer.getSuppressedCount());
+            return result;
+        }
+        if (CmHomeContract.METHOD_GET_WRITE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(CmHomeContract.KEY_WRITES_UNCHANGED, mUnchangedWriteCount.get());
+            return result;
+        }
+        if (CmHomeContract.METHOD_PRUNE_CARDS.equals(method)) {
+            mCardPruner.schedule(0);
+            return null;
+        }
+        if (CmHomeContract.METHOD_GET_METRICS.equals(method)) {
+            if (CmHomeContract.METRICS_FORMAT_JSON.equals(arg)) {
+                Bundle result = new Bundle();
+                result.putString(CmHomeContract.KEY_METRICS_JSON, mMetrics.toJson());
+                return result;
+            }
+            return mMetrics.toBundle();
+        }
+        if (CmHomeContract.METHOD_RESET_METRICS.equals(method)) {
+            mMetrics.reset();
+            return null;
+        }
+        if (CmHomeContract.METHOD_GET_ROW_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(CmHomeContract.KEY_ROW_CACHE_HITS, mRowCache.getHitCount());
+            result.putLong(CmHomeContract.KEY_ROW_CACHE_MISSES, mRowCache.getMissCount());
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Queries the provider, and stops the query with an OperationCanceledException when the
+     * signal is cancelled, also while the rows are read.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection,
+                        String[] selectionArgs, String sortOrder,
+                        CancellationSignal cancellationSignal) {
+        long startNanos = System.nanoTime();
+        int rows = 0;
+        try {
+            Cursor cursor = queryUri(uri, projection, selection, selectionArgs, sortOrder,
+                                     cancellationSignal);
+            if (cursor != null) {
+                // Runs the query here, where it is timed. This adds no work for callers that
+                // read the cursor: moving a cursor gets its count first, which fills the first
+                // window and steps through all rows to count them, and callers in other
+                // processes get the count right away to size their window. Only in-process
+                // callers that never move the cursor pay for it.
+                rows = cursor.getCount();
+            }
+            return cursor;
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_QUERY, URI_MATCHER.match(uri), startNanos,
+                                rows);
+        }
+    }
+
+    private Cursor queryUri(Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder,
+                            CancellationSignal cancellationSignal) {
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        // With write-ahead logging, queries run on the read-only connections and see the
+        // last committed state without blocking on writes in progress.
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getReadableDatabase();
 
+        String limit = null;
+        Uri notificationUri = uri;
         int uriMatch = URI_MATCHER.match(uri);
         switch (uriMatch) {
+            case DATA_CARD_CHANGES:
+                return queryChanges(db, uri, DATA_CARD_CHANGES_QUERY,
+                                    CmHomeContract.DataCard.CONTENT_URI, projection, selection,
+                                    selectionArgs, cancellationSignal);
+            case DATA_CARD_IMAGE_CHANGES:
+                return queryChanges(db, uri, DATA_CARD_IMAGE_CHANGES_QUERY,
+                                    CmHomeContract.DataCardImage.CONTENT_URI, projection,
+                                    selection, selectionArgs, cancellationSignal);
             case DATA_CARD_LIST:
                 queryBuilder.setTables(DATA_CARD_TABLE_NAME);
+                int pageSize =
+                        getLimitParameter(uri, CmHomeContract.DataCard.PARAM_PAGE_SIZE, 0);
+                if (pageSize > 0) {
+                    limit = String.valueOf(pageSize);
+                    selectionArgs = appendPageSelection(queryBuilder, uri, sortOrder,
+                                                        selectionArgs);
+                    sortOrder = null;
+                }
                 if (TextUtils.isEmpty(sortOrder)) {
                     sortOrder = CmHomeContract.DataCard.SORT_ORDER_DEFAULT;
                 }
                 break;
             case DATA_CARD_ITEM:
+                if (TextUtils.isEmpty(selection) &&
+                    mRowCache.canQuery(CmHomeContract.DataCard.PROJECTION_ALL, projection)) {
+                    return queryCachedItem(db, DATA_CARD_TABLE_NAME,
+                                           CmHomeContract.DataCard.PROJECTION_ALL, uri,
+                                           projection);
+                }
                 queryBuilder.setTables(DATA_CARD_TABLE_NAME);
                 queryBuilder.appendWhere(CmHomeContract.DataCard._ID + " = " + uri
                         .getLastPathSegment());
@@ -72,111 +475,750 @@ public class CmHomeContentProvider extends ContentProvider {
             case DATA_CARD_IMAGE_LIST:
                 queryBuilder.setTables(DATA_CARD_IMAGE_TABLE_NAME);
                 if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = CmHomeContract.DataCard.SORT_ORDER_DEFAULT;
+                    sortOrder = CmHomeContract.DataCardImage.SORT_ORDER_DEFAULT;
                 }
                 break;
             case DATA_CARD_IMAGE_ITEM:
+                if (TextUtils.isEmpty(selection) &&
+                    mRowCache.canQuery(CmHomeContract.DataCardImage.PROJECTION_ALL,
+                                       projection)) {
+                    return queryCachedItem(db, DATA_CARD_IMAGE_TABLE_NAME,
+                                           CmHomeContract.DataCardImage.PROJECTION_ALL, uri,
+                                           projection);
+                }
                 queryBuilder.setTables(DATA_CARD_IMAGE_TABLE_NAME);
                 queryBuilder.appendWhere(CmHomeContract.DataCardImage._ID + " = " + uri
                         .getLastPathSegment());
                 break;
+            case DATA_CARD_TOP:
+                if (!TextUtils.isEmpty(sortOrder)) {
+                    throw new IllegalArgumentException("Top queries are ordered by score: " +
+                                                       uri);
+                }
+                queryBuilder.setTables(DATA_CARD_TABLE_NAME);
+                limit = String.valueOf(
+                        getLimitParameter(uri, CmHomeContract.DataCard.PARAM_LIMIT,
+                                          CmHomeContract.DataCard.DEFAULT_TOP_LIMIT));
+                // Read backwards from the end of the score index, which stops after the limit.
+                sortOrder = DATA_CARD_TOP_SORT_ORDER;
+                // Changes are notified on the list and item uris.
+                notificationUri = CmHomeContract.DataCard.CONTENT_URI;
+                break;
+            case DATA_CARD_SEARCH:
+                if (!TextUtils.isEmpty(selection) || !TextUtils.isEmpty(sortOrder)) {
+                    throw new IllegalArgumentException("Searches take no selection or sort " +
+                                                       "order: " + uri);
+                }
+                if (projection == null) {
+                    projection = DATA_CARD_SEARCH_PROJECTION;
+                }
+                String match = buildMatchExpression(
+                        uri.getQueryParameter(CmHomeContract.DataCard.PARAM_QUERY));
+                if (match == null) {
+                    return new MatrixCursor(projection, 0);
+                }
+                queryBuilder.setTables(DATA_CARD_SEARCH_TABLES);
+                queryBuilder.setProjectionMap(
+                        uri.getBooleanQueryParameter(CmHomeContract.DataCard.PARAM_SNIPPETS, false)
+                        ? DATA_CARD_SEARCH_WITH_SNIPPETS_PROJECTION_MAP
+                        : DATA_CARD_SEARCH_PROJECTION_MAP);
+                queryBuilder.appendWhere(DATA_CARD_SEARCH_TABLE_NAME + " MATCH ");
+                queryBuilder.appendWhereEscapeString(match);
+                limit = String.valueOf(
+                        getLimitParameter(uri, CmHomeContract.DataCard.PARAM_LIMIT,
+                                          CmHomeContract.DataCard.DEFAULT_SEARCH_LIMIT));
+                sortOrder = DATA_CARD_SEARCH_SORT_ORDER;
+                notificationUri = CmHomeContract.DataCard.CONTENT_URI;
+                break;
+            case DATA_CARD_WITH_IMAGES:
+                queryBuilder.setTables(DATA_CARD_WITH_IMAGES_TABLES);
+                queryBuilder.setProjectionMap(DATA_CARD_WITH_IMAGES_PROJECTION_MAP);
+                if (projection == null) {
+                    projection = CmHomeContract.DataCard.PROJECTION_WITH_IMAGES;
+                }
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = DATA_CARD_WITH_IMAGES_SORT_ORDER;
+                }
+                // Both tables contribute to the rows.
+                notificationUri = CmHomeContract.CONTENT_URI;
+                break;
             default:
                 throw new IllegalArgumentException("Unsupported URI for insertion: " + uri);
         }
 
-        Cursor cursor =
-                queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null,
+                                           sortOrder, limit, cancellationSignal);
 
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        return cursor;
+    }
+
+    /**
+     * Returns the number of rows a query parameter of the uri limits a query to, or the
+     * default value if the parameter is not set.
+     * @throws IllegalArgumentException If the parameter is not a positive number. A negative
+     *         LIMIT would return every row.
+     */
+    private static int getLimitParameter(Uri uri, String name, int defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int limit = Integer.parseInt(value);
+            if (limit > 0) {
+                return limit;
+            }
+        } catch (NumberFormatException e) {
+            // Rejected below, like any other invalid value.
+        }
+        throw new IllegalArgumentException("Invalid " + name + ": " + uri);
+    }
+
+    /**
+     * Serves a query on an item uri from the row cache.
+     */
+    private Cursor queryCachedItem(SQLiteDatabase db, String table, String[] columns, Uri uri,
+                                   String[] projection) {
+        Cursor cursor = mRowCache.query(db, table, columns, ContentUris.parseId(uri),
+                                        projection);
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
 
+    /**
+     * Builds the full-text query of the given search terms: each word matches the words it
+     * is a prefix of, and all of them have to match. Words are quoted, so that they are never
+     * read as operators of the query syntax.
+     * @return The query, or null if the search terms hold no word.
+     */
+    private static String buildMatchExpression(String query) {
+        if (query == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String term : SEARCH_TERM_SEPARATOR.split(query)) {
+            if (term.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Queries the rows changed and deleted since the token in the uri, oldest first.
+     * Deletions come first among changes with the same token, so that a row deleted and
+     * inserted again is not removed by the consumer. A malformed token, or one older than
+     * {@link CmHomeContract#TOMBSTONE_RETENTION_MILLIS}, returns every row along with
+     * {@link CmHomeContract#EXTRA_RESYNC}.
+     */
+    private Cursor queryChanges(SQLiteDatabase db, Uri uri, String changesQuery, Uri listUri,
+                                String[] projection, String selection,
+                                String[] selectionArgs, CancellationSignal cancellationSignal) {
+        long sinceMillis = 0;
+        boolean resync = false;
+        String sinceParameter = uri.getQueryParameter(CmHomeContract.PARAM_SINCE);
+        if (sinceParameter != null) {
+            try {
+                sinceMillis = Long.parseLong(sinceParameter);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid change token, returning all rows: " + sinceParameter);
+            }
+            // The tombstones of the deletions since an outdated token may have been pruned.
+            if (sinceMillis <
+                System.currentTimeMillis() - CmHomeContract.TOMBSTONE_RETENTION_MILLIS) {
+                sinceMillis = 0;
+                resync = true;
+            }
+        }
+        String since = String.valueOf(sinceMillis);
+
+        String query = SQLiteQueryBuilder.buildQueryString(false,
+                "(" + changesQuery + ")",
+                projection,
+                selection,
+                null,
+                null,
+                CmHomeContract.CHANGE_TOKEN_COL + " ASC, " + CmHomeContract.DELETED_COL + " DESC",
+                null);
+
+        String[] args;
+        if (selectionArgs == null) {
+            args = new String[]{since};
+        } else {
+            args = new String[selectionArgs.length + 1];
+            args[0] = since;
+            System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        }
+
+        Cursor cursor = db.rawQuery(query, args, cancellationSignal);
+        // Changes are notified on the rows, which are descendants of the list uri.
+        cursor.setNotificationUri(getContext().getContentResolver(), listUri);
+        if (!resync) {
+            return cursor;
+        }
+
+        final Bundle extras = new Bundle();
+        extras.putBoolean(CmHomeContract.EXTRA_RESYNC, true);
+        return new CursorWrapper(cursor) {
+            @Override
+            public Bundle getExtras() {
+                return extras;
+            }
+        };
+    }
+
+    /**
+     * Restricts a paged card query to the cards that follow the key given in the uri, in
+     * (priority, _id) order, where cards without a priority come first. The key is bound as
+     * arguments, so every page runs the same statement.
+     * @return The selection arguments, preceded by those of the key.
+     */
+    private String[] appendPageSelection(SQLiteQueryBuilder queryBuilder, Uri uri,
+                                         String sortOrder, String[] selectionArgs) {
+        if (!TextUtils.isEmpty(sortOrder) &&
+            !CmHomeContract.DataCard.SORT_ORDER_DEFAULT.equals(sortOrder)) {
+            throw new IllegalArgumentException("Paged queries only support the default sort " +
+                                               "order: " + uri);
+        }
+
+        String afterId = uri.getQueryParameter(CmHomeContract.DataCard.PARAM_AFTER_ID);
+        if (afterId == null) {
+            return selectionArgs;
+        }
+
+        // Parsing the key ensures that it binds as numbers, and compares as ones.
+        String id = String.valueOf(Long.parseLong(afterId));
+        String afterPriority =
+                uri.getQueryParameter(CmHomeContract.DataCard.PARAM_AFTER_PRIORITY);
+        String[] keyArgs;
+        if (afterPriority == null) {
+            // Every card with a priority follows the cards without one.
+            queryBuilder.appendWhere("(" + CmHomeContract.DataCard.PRIORITY_COL + " IS NULL" +
+                                     " AND " + CmHomeContract.DataCard._ID + " > ?) OR " +
+                                     CmHomeContract.DataCard.PRIORITY_COL + " IS NOT NULL");
+            keyArgs = new String[]{id};
+        } else {
+            // The first term lets the priority index, which holds the row id, seek to the key
+            // instead of scanning the previous pages.
+            String priority = String.valueOf(Integer.parseInt(afterPriority));
+            queryBuilder.appendWhere(CmHomeContract.DataCard.PRIORITY_COL + " >= ? AND (" +
+                                     CmHomeContract.DataCard.PRIORITY_COL + " > ? OR " +
+                                     CmHomeContract.DataCard._ID + " > ?)");
+            keyArgs = new String[]{priority, priority, id};
+        }
+
+        if (selectionArgs == null) {
+            return keyArgs;
+        }
+        String[] args = new String[keyArgs.length + selectionArgs.length];
+        System.arraycopy(keyArgs, 0, args, 0, keyArgs.length);
+        System.arraycopy(selectionArgs, 0, args, keyArgs.length, selectionArgs.length);
+        return args;
+    }
+
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        long startNanos = System.nanoTime();
+        int updateCount = 0;
+        try {
+            updateCount = updateUri(uri, values, selection, selectionArgs);
+            return updateCount;
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_UPDATE, URI_MATCHER.match(uri), startNanos,
+                                updateCount);
+        }
+    }
+
+    private int updateUri(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
         SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
         int updateCount = 0;
         int uriMatch = URI_MATCHER.match(uri);
 
-        switch (uriMatch) {
-            case DATA_CARD_LIST:
-                updateCount = db.update(DATA_CARD_TABLE_NAME,
-                                    values,
-                                    selection,
-                                    selectionArgs);
-                break;
-            case DATA_CARD_ITEM:
-                String idStr = uri.getLastPathSegment();
-                String where = CmHomeContract.DataCard._ID + " = " + idStr;
-                if (!TextUtils.isEmpty(selection)) {
-                    where += " AND " + selection;
-                }
-                updateCount = db.update(DATA_CARD_TABLE_NAME,
-                                            values,
-                                            where,
+        if (uriMatch == DATA_CARD_IMAGE_LIST || uriMatch == DATA_CARD_IMAGE_ITEM) {
+            // Images are written to their files before the write lock is taken.
+            values = storeImageData(uri, values);
+        }
+
+        // Updates set the change token, which is only assigned within a transaction.
+        boolean nested = db.inTransaction();
+        long startNanos = System.nanoTime();
+        db.beginTransaction();
+        try {
+            switch (uriMatch) {
+                case DATA_CARD_LIST:
+                    ContentValues cardValues = RankingScore.addScore(values, false);
+                    if (needsScoreUpdate(values, cardValues)) {
+                        updateCount = updateCardsAndScores(db, cardValues, selection,
+                                                           selectionArgs);
+                    } else {
+                        updateCount = db.update(DATA_CARD_TABLE_NAME,
+                                            setLastModified(db, clearContentHash(cardValues)),
+                                            selection,
                                             selectionArgs);
-                break;
-            case DATA_CARD_IMAGE_LIST:
-                updateCount = db.update(DATA_CARD_IMAGE_TABLE_NAME,
-                                    values,
-                                    selection,
-                                    selectionArgs);
-                break;
-            case DATA_CARD_IMAGE_ITEM:
-                idStr = uri.getLastPathSegment();
-                where = CmHomeContract.DataCardImage._ID + " = " + idStr;
-                if (!TextUtils.isEmpty(selection)) {
-                    where += " AND " + selection;
-                }
-                updateCount = db.update(DATA_CARD_IMAGE_TABLE_NAME,
-                                        values,
-                                        where,
+                    }
+                    break;
+                case DATA_CARD_ITEM:
+                    updateCount = updateItem(db, DATA_CARD_TABLE_NAME, uri, values,
+                                             selection, selectionArgs);
+                    break;
+                case DATA_CARD_IMAGE_LIST:
+                    updateCount = db.update(DATA_CARD_IMAGE_TABLE_NAME,
+                                        setLastModified(db, values),
+                                        selection,
                                         selectionArgs);
-                break;
-            default:
-                throw new IllegalArgumentException("Unsupported URI for update: " + uri);
+                    break;
+                case DATA_CARD_IMAGE_ITEM:
+                    updateCount = updateItem(db, DATA_CARD_IMAGE_TABLE_NAME, uri,
+                                             values, selection, selectionArgs);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported URI for update: " + uri);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (!nested) {
+                mMetrics.recordTransaction(startNanos, updateCount);
+            }
         }
 
         if (updateCount > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+            if (uriMatch == DATA_CARD_LIST || uriMatch == DATA_CARD_ITEM) {
+                mCardPruner.onCardsWritten();
+            }
         }
         return updateCount;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
+        long startNanos = System.nanoTime();
+        Uri result = null;
+        try {
+            result = insertUri(uri, values);
+            return result;
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_INSERT, URI_MATCHER.match(uri), startNanos,
+                                result != null ? 1 : 0);
+        }
+    }
+
+    private Uri insertUri(Uri uri, ContentValues values) {
         int uriMatch = URI_MATCHER.match(uri);
 
         SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
         switch (uriMatch) {
             case DATA_CARD_LIST:
-                long id = db.insert(DATA_CARD_TABLE_NAME,
-                                    null,
-                                    values);
+                mCardPruner.onCardsWritten();
+                long id = mStatementCache.insert(db, DATA_CARD_TABLE_NAME,
+                                                 RankingScore.addScore(values, true));
                 return getUriForId(id, uri);
             case DATA_CARD_ITEM:
-                id = db.insertWithOnConflict(DATA_CARD_TABLE_NAME,
-                                                  null,
-                                                  values,
-                                                  SQLiteDatabase.CONFLICT_REPLACE);
-                return getUriForId(id, uri);
+                mCardPruner.onCardsWritten();
+                if (isUpdateOnly(uri)) {
+                    return updateExistingItem(db, DATA_CARD_TABLE_NAME, uri, values);
+                }
+                return getUriForUpsert(upsert(db, DATA_CARD_TABLE_NAME, uri, values), uri);
             case DATA_CARD_IMAGE_LIST:
-                id = db.insert(DATA_CARD_IMAGE_TABLE_NAME,
-                                    null,
-                                    values);
+                id = mStatementCache.insert(db, DATA_CARD_IMAGE_TABLE_NAME,
+                                            storeImageData(uri, values));
                 return getUriForId(id, uri);
             case DATA_CARD_IMAGE_ITEM:
-                id = db.insertWithOnConflict(DATA_CARD_IMAGE_TABLE_NAME,
-                                                  null,
-                                                  values,
-                                                  SQLiteDatabase.CONFLICT_REPLACE);
-                return getUriForId(id, uri);
+                values = storeImageData(uri, values);
+                if (isUpdateOnly(uri)) {
+                    return updateExistingItem(db, DATA_CARD_IMAGE_TABLE_NAME, uri, values);
+                }
+                return getUriForUpsert(upsert(db, DATA_CARD_IMAGE_TABLE_NAME, uri, values),
+                                       uri);
             default:
                 throw new IllegalArgumentException("Unsupported URI for insertion: " + uri);
         }
     }
 
+    /**
+     * Stores the image in the {@link CmHomeContract.DataCardImage#IMAGE_DATA_COL} column of
+     * image values, if any.
+     * @param uri The uri written to. The uri of the stored image has the same authority, under
+     *            which the publisher declared this provider.
+     * @return The values to write, with the column replaced by the uri of the stored image.
+     */
+    private ContentValues storeImageData(Uri uri, ContentValues values) {
+        if (values == null || !values.containsKey(CmHomeContract.DataCardImage.IMAGE_DATA_COL)) {
+            return values;
+        }
+
+        byte[] imageData = values.getAsByteArray(CmHomeContract.DataCardImage.IMAGE_DATA_COL);
+        ContentValues storedValues = new ContentValues(values);
+        storedValues.remove(CmHomeContract.DataCardImage.IMAGE_DATA_COL);
+        if (imageData != null) {
+            try {
+                storedValues.put(CmHomeContract.DataCardImage.IMAGE_URI_COL,
+                                 mImageStore.store(imageData, uri.getAuthority()).toString());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to store image", e);
+                throw new IllegalArgumentException("Unable to store image", e);
+            }
+        }
+        return storedValues;
+    }
+
+    /**
+     * Opens an image stored by the provider, or a thumbnail, for reading. The descriptor
+     * refers to the file itself, so its content is not copied through the provider.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        long startNanos = System.nanoTime();
+        int uriMatch = URI_MATCHER.match(uri);
+        try {
+            return openFileForMatch(uriMatch, uri, mode);
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_OPEN_FILE, uriMatch, startNanos, 0);
+        }
+    }
+
+    private ParcelFileDescriptor openFileForMatch(int uriMatch, Uri uri, String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Images are read-only: " + uri);
+        }
+
+        File file;
+        switch (uriMatch) {
+            case IMAGE_FILE:
+                try {
+                    file = mImageStore.getFile(uri);
+                } catch (IllegalArgumentException e) {
+                    throw new FileNotFoundException(e.getMessage());
+                }
+                break;
+            case THUMBNAIL:
+                file = getThumbnail(uri);
+                break;
+            default:
+                throw new FileNotFoundException("Unsupported URI: " + uri);
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Returns the cached thumbnail of the image with the id of a thumbnail uri, generating
+     * it from the image if it is not cached.
+     */
+    private File getThumbnail(Uri uri) throws FileNotFoundException {
+        String sizeParameter =
+                uri.getQueryParameter(CmHomeContract.DataCardImage.PARAM_THUMBNAIL_SIZE);
+        int size = ThumbnailCache.getBucketSize(
+                sizeParameter != null ? Integer.parseInt(sizeParameter)
+                                      : CmHomeContract.DataCardImage.MAX_THUMBNAIL_SIZE);
+
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getReadableDatabase();
+        Cursor cursor = db.query(DATA_CARD_IMAGE_TABLE_NAME,
+                                 new String[]{CmHomeContract.DataCardImage.IMAGE_URI_COL},
+                                 CmHomeContract.DataCardImage._ID + " = ?",
+                                 new String[]{String.valueOf(ContentUris.parseId(uri))},
+                                 null, null, null);
+        String imageUri;
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new FileNotFoundException("No image for " + uri);
+            }
+            imageUri = cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+
+        // Other images would be read with the identity of the publisher, which could hand the
+        // caller images of other applications that it has no access to.
+        Uri sourceUri = Uri.parse(imageUri);
+        String scheme = sourceUri.getScheme();
+        ThumbnailCache.Source source;
+        if ("content".equals(scheme) && URI_MATCHER.match(sourceUri) == IMAGE_FILE) {
+            try {
+                source = ThumbnailCache.fileSource(mImageStore.getFile(sourceUri));
+            } catch (IllegalArgumentException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        } else if ("http".equals(scheme) || "https".equals(scheme)) {
+            source = ThumbnailCache.downloadSource(imageUri);
+        } else {
+            throw new FileNotFoundException("No thumbnails of " + imageUri);
+        }
+
+        try {
+            return mThumbnailCache.getThumbnail(imageUri, size, source);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create a thumbnail of " + imageUri, e);
+            throw new FileNotFoundException("Unable to create a thumbnail of " + imageUri);
+        }
+    }
+
+    private boolean isUpdateOnly(Uri uri) {
+        return uri.getBooleanQueryParameter(CmHomeContract.PARAM_UPDATE_ONLY, false);
+    }
+
+    /**
+     * Applies the values of an item uri insert that carries
+     * {@link CmHomeContract#PARAM_UPDATE_ONLY} to the existing row.
+     * @return The item uri, or null if the row does not exist.
+     */
+    private Uri updateExistingItem(SQLiteDatabase db, String table, Uri uri,
+                                   ContentValues values) {
+        Uri itemUri = uri.buildUpon().clearQuery().build();
+        boolean nested = db.inTransaction();
+        long startNanos = System.nanoTime();
+        int result;
+        db.beginTransaction();
+        try {
+            result = updateRow(db, table, ContentUris.parseId(itemUri), values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (!nested) {
+                mMetrics.recordTransaction(startNanos, 1);
+            }
+        }
+        if (result == ROW_MISSING) {
+            return null;
+        }
+        if (result == ROW_CHANGED) {
+            notifyChange(itemUri);
+        }
+        return itemUri;
+    }
+
+    /**
+     * Inserts or replaces the row identified by an item uri, in a single transaction.
+     * The existing row is updated in place rather than deleted and re-inserted, so that
+     * columns with defaults such as the creation date are preserved.
+     * @return {@link #ROW_CHANGED} or {@link #ROW_UNCHANGED}, or {@link #ROW_MISSING} if the
+     *         row could neither be updated nor inserted.
+     */
+    private int upsert(SQLiteDatabase db, String table, Uri uri, ContentValues values) {
+        long id = ContentUris.parseId(uri);
+
+        // Within applyBatch, the transaction is part of the batch's, which is recorded.
+        boolean nested = db.inTransaction();
+        long startNanos = System.nanoTime();
+        db.beginTransaction();
+        try {
+            int result = updateRow(db, table, id, values);
+            if (result == ROW_MISSING) {
+                ContentValues insertValues = new ContentValues(values);
+                insertValues.put(BaseColumns._ID, id);
+                if (DATA_CARD_TABLE_NAME.equals(table)) {
+                    insertValues = RankingScore.addScore(insertValues, true);
+                }
+                if (mStatementCache.insert(db, table, insertValues) > 0) {
+                    result = ROW_CHANGED;
+                }
+            }
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+            if (!nested) {
+                mMetrics.recordTransaction(startNanos, 1);
+            }
+        }
+    }
+
+    /**
+     * Updates the row identified by an item uri. Plain updates by id use a cached statement,
+     * additional selections go through the generic path.
+     * @return The number of rows changed. A card left unchanged because its content hash
+     *         matched is not counted.
+     */
+    private int updateItem(SQLiteDatabase db, String table, Uri uri, ContentValues values,
+                           String selection, String[] selectionArgs) {
+        long id = ContentUris.parseId(uri);
+        if (TextUtils.isEmpty(selection)) {
+            return updateRow(db, table, id, values) == ROW_CHANGED ? 1 : 0;
+        }
+        if (!DATA_CARD_TABLE_NAME.equals(table)) {
+            return db.update(table, setLastModified(db, values),
+                             BaseColumns._ID + " = " + id + " AND " + selection, selectionArgs);
+        }
+
+        ContentValues cardValues = RankingScore.addScore(values, false);
+        int updateCount = db.update(table, setLastModified(db, clearContentHash(cardValues)),
+                                    BaseColumns._ID + " = " + id + " AND " + selection,
+                                    selectionArgs);
+        if (updateCount > 0 && needsScoreUpdate(values, cardValues)) {
+            updateScores(db, BaseColumns._ID + " = " + id);
+        }
+        return updateCount;
+    }
+
+    /**
+     * Updates the row with the given id. A card whose stored content hash equals the one in
+     * the values is left untouched, so that neither its modification date nor its observers
+     * are disturbed by a publisher writing the same content again.
+     * @return {@link #ROW_CHANGED}, {@link #ROW_UNCHANGED} or {@link #ROW_MISSING}
+     */
+    private int updateRow(SQLiteDatabase db, String table, long id, ContentValues values) {
+        if (!DATA_CARD_TABLE_NAME.equals(table)) {
+            return mStatementCache.updateById(db, table, id, setLastModified(db, values)) > 0
+                   ? ROW_CHANGED : ROW_MISSING;
+        }
+
+        ContentValues cardValues = setLastModified(db, RankingScore.addScore(values, false));
+        int result;
+        if (cardValues.getAsString(CmHomeContract.DataCard.CONTENT_HASH_COL) != null) {
+            if (mStatementCache.updateById(db, table, id, cardValues,
+                                           CmHomeContract.DataCard.CONTENT_HASH_COL) > 0) {
+                result = ROW_CHANGED;
+            } else if (DatabaseUtils.queryNumEntries(db, table,
+                                                     BaseColumns._ID + " = " + id) == 0) {
+                result = ROW_MISSING;
+            } else {
+                mUnchangedWriteCount.incrementAndGet();
+                result = ROW_UNCHANGED;
+            }
+        } else {
+            result = mStatementCache.updateById(db, table, id, clearContentHash(cardValues)) > 0
+                     ? ROW_CHANGED : ROW_MISSING;
+        }
+
+        if (result == ROW_CHANGED && needsScoreUpdate(values, cardValues)) {
+            updateScores(db, BaseColumns._ID + " = " + id);
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether card values change the columns the score depends on, without holding
+     * all of them, so that the score could not be computed along with the write.
+     * @param scoredValues The values as returned by {@link RankingScore#addScore}
+     */
+    private static boolean needsScoreUpdate(ContentValues values, ContentValues scoredValues) {
+        return RankingScore.affectsScore(values) &&
+               !scoredValues.containsKey(CmHomeContract.DataCard.SCORE_COL);
+    }
+
+    /**
+     * Updates the cards matching the selection, and recomputes the scores of those cards. The
+     * selection may no longer match the cards once they are updated, so their ids are read
+     * first, in the same transaction.
+     * @return The number of cards updated.
+     */
+    private int updateCardsAndScores(SQLiteDatabase db, ContentValues values, String selection,
+                                     String[] selectionArgs) {
+        boolean nested = db.inTransaction();
+        long startNanos = System.nanoTime();
+        int updateCount = 0;
+        db.beginTransaction();
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            Cursor cursor = db.query(DATA_CARD_TABLE_NAME, new String[]{BaseColumns._ID},
+                                     selection, selectionArgs, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (!ids.isEmpty()) {
+                updateCount = db.update(DATA_CARD_TABLE_NAME,
+                                        setLastModified(db, clearContentHash(values)),
+                                        selection,
+                                        selectionArgs);
+                // The ids are numbers, so they are safe to inline. They are split into
+                // statements of bounded length.
+                for (int start = 0; start < ids.size(); start += SCORE_UPDATE_BATCH_SIZE) {
+                    int end = Math.min(ids.size(), start + SCORE_UPDATE_BATCH_SIZE);
+                    List<Long> batch = ids.subList(start, end);
+                    updateScores(db, BaseColumns._ID + " IN (" + TextUtils.join(",", batch) +
+                                     ")");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (!nested) {
+                mMetrics.recordTransaction(startNanos, updateCount);
+            }
+        }
+        return updateCount;
+    }
+
+    /**
+     * Recomputes the scores of the cards matching the where clause from their rows.
+     */
+    private static void updateScores(SQLiteDatabase db, String whereClause) {
+        db.execSQL("UPDATE " + DATA_CARD_TABLE_NAME + " SET " +
+                   CmHomeContract.DataCard.SCORE_COL + " = " + RankingScore.SQL_EXPRESSION +
+                   " WHERE " + whereClause);
+    }
+
+    /**
+     * Sets the modification date of updated rows, as part of the UPDATE statement itself.
+     * Both tables name the column the same. The date is the change token of the rows, so it
+     * is read within the transaction of the write, once the write lock is held: a write
+     * that waited for the lock cannot commit a token lower than one a consumer already read.
+     * It never goes below the last token given, should the clock be set back.
+     */
+    private ContentValues setLastModified(SQLiteDatabase db, ContentValues values) {
+        if (!db.inTransaction()) {
+            throw new IllegalStateException("Change tokens are assigned within a transaction");
+        }
+        mLastChangeToken = Math.max(mLastChangeToken, System.currentTimeMillis());
+        ContentValues modifiedValues = new ContentValues(values);
+        modifiedValues.put(CmHomeContract.DataCard.LAST_MODIFIED_COL, mLastChangeToken);
+        return modifiedValues;
+    }
+
+    /**
+     * Adds a null content hash to card values that do not carry one. The content they write
+     * is unknown, so the stored hash must not match later writes.
+     */
+    private static ContentValues clearContentHash(ContentValues values) {
+        if (values.containsKey(CmHomeContract.DataCard.CONTENT_HASH_COL)) {
+            return values;
+        }
+        ContentValues clearedValues = new ContentValues(values);
+        clearedValues.putNull(CmHomeContract.DataCard.CONTENT_HASH_COL);
+        return clearedValues;
+    }
+
+    /**
+     * Deletes the row identified by an item uri. Plain deletes by id use a cached statement,
+     * additional selections go through the generic path.
+     */
+    private int deleteItem(SQLiteDatabase db, String table, Uri uri, String selection,
+                           String[] selectionArgs) {
+        long id = ContentUris.parseId(uri);
+        if (TextUtils.isEmpty(selection)) {
+            return mStatementCache.deleteById(db, table, id);
+        }
+        return db.delete(table, BaseColumns._ID + " = " + id + " AND " + selection,
+                         selectionArgs);
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long startNanos = System.nanoTime();
+        int deleteCount = 0;
+        try {
+            deleteCount = deleteUri(uri, selection, selectionArgs);
+            return deleteCount;
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_DELETE, URI_MATCHER.match(uri), startNanos,
+                                deleteCount);
+        }
+    }
+
+    private int deleteUri(Uri uri, String selection, String[] selectionArgs) {
         SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
         int deleteCount = 0;
         int uriMatch = URI_MATCHER.match(uri);
@@ -188,14 +1230,8 @@ public class CmHomeContentProvider extends ContentProvider {
                                             selectionArgs);
                 break;
             case DATA_CARD_ITEM:
-                String idStr = uri.getLastPathSegment();
-                String where = CmHomeContract.DataCard._ID + " = " + idStr;
-                if (!TextUtils.isEmpty(selection)) {
-                    where += " AND " + selection;
-                }
-                deleteCount = db.delete(DATA_CARD_TABLE_NAME,
-                                            where,
-                                            selectionArgs);
+                deleteCount = deleteItem(db, DATA_CARD_TABLE_NAME, uri, selection,
+                                         selectionArgs);
                 break;
             case DATA_CARD_IMAGE_LIST:
                 deleteCount = db.delete(DATA_CARD_IMAGE_TABLE_NAME,
@@ -203,21 +1239,19 @@ public class CmHomeContentProvider extends ContentProvider {
                                         selectionArgs);
                 break;
             case DATA_CARD_IMAGE_ITEM:
-                idStr = uri.getLastPathSegment();
-                where = CmHomeContract.DataCardImage._ID + " = " + idStr;
-                if (!TextUtils.isEmpty(selection)) {
-                    where += " AND " + selection;
-                }
-                deleteCount = db.delete(DATA_CARD_IMAGE_TABLE_NAME,
-                                        where,
-                                        selectionArgs);
+                deleteCount = deleteItem(db, DATA_CARD_IMAGE_TABLE_NAME, uri, selection,
+                                         selectionArgs);
                 break;
             default:
                 throw new IllegalArgumentException("Unsupported URI for update: " + uri);
         }
 
         if (deleteCount > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+            if (uriMatch == DATA_CARD_LIST || uriMatch == DATA_CARD_ITEM) {
+                // The images of the deleted cards were deleted along with them.
+                notifyChange(CmHomeContract.DataCardImage.CONTENT_URI);
+            }
         }
         return deleteCount;
     }
@@ -226,15 +1260,172 @@ public class CmHomeContentProvider extends ContentProvider {
         if (id > 0) {
             Uri itemUri = ContentUris.withAppendedId(uri, id);
             // notify all listeners of changes:
-            getContext().getContentResolver().notifyChange(itemUri, null);
+            notifyChange(itemUri);
             return itemUri;
         }
         throw new IllegalArgumentException("Problem while inserting into uri: " + uri);
     }
 
+    private Uri getUriForUpsert(int result, Uri itemUri) {
+        if (result == ROW_CHANGED) {
+            // notify all listeners of changes:
+            notifyChange(itemUri);
+            return itemUri;
+        }
+        if (result == ROW_UNCHANGED) {
+            return itemUri;
+        }
+        throw new IllegalArgumentException("Problem while inserting into uri: " + itemUri);
+    }
+
+    /**
+     * Inserts all rows in a single transaction and notifies observers of the given uri once
+     * the transaction has been committed.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long startNanos = System.nanoTime();
+        int insertCount = 0;
+        try {
+            insertCount = bulkInsertUri(uri, values);
+            return insertCount;
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_BULK_INSERT, URI_MATCHER.match(uri),
+                                startNanos, insertCount);
+        }
+    }
+
+    private int bulkInsertUri(Uri uri, ContentValues[] values) {
+        String table;
+        int uriMatch = URI_MATCHER.match(uri);
+        switch (uriMatch) {
+            case DATA_CARD_LIST:
+                table = DATA_CARD_TABLE_NAME;
+                break;
+            case DATA_CARD_IMAGE_LIST:
+                table = DATA_CARD_IMAGE_TABLE_NAME;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported URI for bulk insertion: " + uri);
+        }
+
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        int insertCount = 0;
+        long startNanos = System.nanoTime();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (uriMatch == DATA_CARD_IMAGE_LIST) {
+                    value = storeImageData(uri, value);
+                } else {
+                    value = RankingScore.addScore(value, true);
+                }
+                if (mStatementCache.insert(db, table, value) > 0) {
+                    insertCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mMetrics.recordTransaction(startNanos, insertCount);
+        }
+
+        if (insertCount > 0) {
+            notifyChange(uri);
+            if (uriMatch == DATA_CARD_LIST) {
+                mCardPruner.onCardsWritten();
+            }
+        }
+        return insertCount;
+    }
+
+    /**
+     * Applies all operations in a single transaction. Change notifications from the
+     * individual operations are held back until the transaction has been committed, and
+     * then coalesced into one notification per affected uri.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mCmHomeDatabaseHelper.getWritableDatabase();
+        Set<Uri> changedUris = new HashSet<Uri>();
+        boolean committed = false;
+        mBatchChangedUris.set(changedUris);
+        long startNanos = System.nanoTime();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mMetrics.recordTransaction(startNanos, operations.size());
+            mMetrics.recordCall(ProviderMetrics.OP_APPLY_BATCH, startNanos, operations.size());
+            mBatchChangedUris.remove();
+            // Rows changed by the batch were invalidated as it went, but may have been cached
+            // again by readers before it committed, or rolled back.
+            for (Uri uri : changedUris) {
+                invalidateCachedRows(uri);
+            }
+            if (committed && !changedUris.isEmpty()) {
+                mNotificationCoalescer.notifyChanges(changedUris);
+            }
+        }
+    }
+
+    /**
+     * Notifies observers of a change to the given uri, or records it to be notified at the end
+     * of the batch if the current thread is applying one. Cached rows of the uri are
+     * invalidated right away, and unreferenced images collected after image changes.
+     */
+    private void notifyChange(Uri uri) {
+        invalidateCachedRows(uri);
+        int uriMatch = URI_MATCHER.match(uri);
+        if (uriMatch == DATA_CARD_IMAGE_LIST || uriMatch == DATA_CARD_IMAGE_ITEM) {
+            mImageStore.onImagesChanged();
+        }
+        Set<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(uri);
+        } else {
+            mNotificationCoalescer.notifyChange(uri);
+        }
+    }
+
+    /**
+     * Removes the rows changed at the given uri from the row cache: the row of an item uri,
+     * or all rows of the table of a list uri.
+     */
+    private void invalidateCachedRows(Uri uri) {
+        switch (URI_MATCHER.match(uri)) {
+            case DATA_CARD_LIST:
+                mRowCache.invalidateTable(DATA_CARD_TABLE_NAME);
+                break;
+            case DATA_CARD_ITEM:
+                mRowCache.invalidateRow(DATA_CARD_TABLE_NAME, ContentUris.parseId(uri));
+                break;
+            case DATA_CARD_IMAGE_LIST:
+                mRowCache.invalidateTable(DATA_CARD_IMAGE_TABLE_NAME);
+                break;
+            case DATA_CARD_IMAGE_ITEM:
+                mRowCache.invalidateRow(DATA_CARD_IMAGE_TABLE_NAME, ContentUris.parseId(uri));
+                break;
+        }
+    }
+
     @Override
     public String getType(Uri uri) {
+        long startNanos = System.nanoTime();
         int uriMatch = URI_MATCHER.match(uri);
+        try {
+            return getTypeForMatch(uriMatch, uri);
+        } finally {
+            mMetrics.recordCall(ProviderMetrics.OP_GET_TYPE, uriMatch, startNanos, 0);
+        }
+    }
+
+    private static String getTypeForMatch(int uriMatch, Uri uri) {
         switch (uriMatch) {
             case DATA_CARD_LIST:
                 return CmHomeContract.DataCard.CONTENT_TYPE;
@@ -244,6 +1435,17 @@ public class CmHomeContentProvider extends ContentProvider {
                 return CmHomeContract.DataCardImage.CONTENT_TYPE;
             case DATA_CARD_IMAGE_ITEM:
                 return CmHomeContract.DataCardImage.CONTENT_ITEM_TYPE;
+            case DATA_CARD_CHANGES:
+                return CmHomeContract.DataCard.CONTENT_TYPE;
+            case DATA_CARD_IMAGE_CHANGES:
+                return CmHomeContract.DataCardImage.CONTENT_TYPE;
+            case DATA_CARD_WITH_IMAGES:
+            case DATA_CARD_TOP:
+            case DATA_CARD_SEARCH:
+                return CmHomeContract.DataCard.CONTENT_TYPE;
+            case IMAGE_FILE:
+            case THUMBNAIL:
+                return CmHomeContract.DataCardImage.IMAGE_FILE_TYPE;
             default:
                 throw new IllegalArgumentException("Unsupported URI: " + uri);
         }
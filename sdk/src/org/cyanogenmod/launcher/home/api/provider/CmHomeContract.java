@@ -1,9 +1,15 @@
 package org.cyanogenmod.launcher.home.api.provider;
 
 import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.TreeSet;
+
 public class CmHomeContract {
     public static final String AUTHORITY =
             "org.cyanogenmod.launcher.home.api";
@@ -11,8 +17,139 @@ public class CmHomeContract {
     public static final Uri CONTENT_URI =
             Uri.parse("content://" + AUTHORITY);
 
+    /**
+     * Publishers declare CmHomeContentProvider under their package name followed by this
+     * suffix.
+     */
+    public static final String AUTHORITY_SUFFIX = ".cmhomeapi";
+
+    /**
+     * Returns the given contract uri, addressed to the provider of a publisher.
+     * @param authority The authority the publisher declares the provider under
+     */
+    public static Uri buildUriForAuthority(Uri uri, String authority) {
+        return uri.buildUpon().authority(authority).build();
+    }
+
+    /**
+     * Query parameter for inserts on an item uri. When set to true, the values only update
+     * the row if it exists, and no row is inserted if it does not.
+     */
+    public static final String PARAM_UPDATE_ONLY = "update_only";
+
+    /**
+     * Provider method that returns the change notification counters in a Bundle, under
+     * {@link #KEY_NOTIFICATIONS_DELIVERED} and {@link #KEY_NOTIFICATIONS_SUPPRESSED}.
+     */
+    public static final String METHOD_GET_NOTIFICATION_STATS = "get_notification_stats";
+    public static final String KEY_NOTIFICATIONS_DELIVERED   = "notifications_delivered";
+    public static final String KEY_NOTIFICATIONS_SUPPRESSED  = "notifications_suppressed";
+
+    /**
+     * Provider method that returns the hit and miss counters of the cache of rows served on
+     * the item uris in a Bundle, under {@link #KEY_ROW_CACHE_HITS} and
+     * {@link #KEY_ROW_CACHE_MISSES}.
+     */
+    public static final String METHOD_GET_ROW_CACHE_STATS = "get_row_cache_stats";
+    public static final String KEY_ROW_CACHE_HITS         = "row_cache_hits";
+    public static final String KEY_ROW_CACHE_MISSES       = "row_cache_misses";
+
+    /**
+     * Provider method that deletes expired cards, and the lowest priority cards beyond the
+     * maximum card count, in the background. Cards without a priority count as priority 3
+     * cards.
+     */
+    public static final String METHOD_PRUNE_CARDS = "prune_cards";
+
+    /**
+     * Provider method that returns the number of writes to cards that were skipped because
+     * the content hash was unchanged in a Bundle, under {@link #KEY_WRITES_UNCHANGED}.
+     */
+    public static final String METHOD_GET_WRITE_STATS = "get_write_stats";
+    public static final String KEY_WRITES_UNCHANGED   = "writes_unchanged";
+
+    /**
+     * Provider method that returns the metrics the provider collected since it started, or
+     * since they were last reset with {@link #METHOD_RESET_METRICS}, in a Bundle.
+     *
+     * The calls to query, insert, update, delete, getType, bulkInsert and openFile are counted
+     * per uri pattern, each in a Bundle under the name of the operation and the pattern, such
+     * as "query datacard/#", and the calls to applyBatch and call under "apply_batch" and
+     * "call". Each holds {@link #KEY_METRICS_COUNT}, the number of rows returned
+     * or written under {@link #KEY_METRICS_ROWS}, {@link #KEY_METRICS_TOTAL_NANOS},
+     * {@link #KEY_METRICS_MAX_NANOS}, and a latency histogram under
+     * {@link #KEY_METRICS_HISTOGRAM}: a long array whose element 0 counts the calls that took
+     * less than 1 us, element i those that took from 2^(i-1) up to 2^i us, and the last element
+     * all slower ones. The write transactions are counted the same way under
+     * {@link #KEY_METRICS_TRANSACTIONS}, the number of change notifications sent is under
+     * {@link #KEY_METRICS_NOTIFY_CHANGES}, and the time collection started, in milliseconds
+     * since the epoch, under {@link #KEY_METRICS_SINCE}.
+     *
+     * When called with {@link #METRICS_FORMAT_JSON} as the argument, the same metrics are
+     * returned as a JSON object, with the histograms as arrays, in a String under
+     * {@link #KEY_METRICS_JSON}.
+     */
+    public static final String METHOD_GET_METRICS         = "get_metrics";
+    public static final String METHOD_RESET_METRICS       = "reset_metrics";
+    public static final String KEY_METRICS_COUNT          = "count";
+    public static final String KEY_METRICS_ROWS           = "rows";
+    public static final String KEY_METRICS_TOTAL_NANOS    = "total_nanos";
+    public static final String KEY_METRICS_MAX_NANOS      = "max_nanos";
+    public static final String KEY_METRICS_HISTOGRAM      = "histogram";
+    public static final String KEY_METRICS_TRANSACTIONS   = "transactions";
+    public static final String KEY_METRICS_NOTIFY_CHANGES = "notify_changes";
+    public static final String KEY_METRICS_SINCE          = "since";
+    public static final String METRICS_FORMAT_JSON        = "json";
+    public static final String KEY_METRICS_JSON           = "json";
+
+    /**
+     * Query parameter of the changes uris. Only the rows changed at or after this change
+     * token are returned. Omit it to get every row.
+     *
+     * Deleted rows are only remembered for {@link #TOMBSTONE_RETENTION_MILLIS}. A token older
+     * than that, or a malformed one, returns every row, and the extras of the cursor hold
+     * {@link #EXTRA_RESYNC}.
+     */
+    public static final String PARAM_SINCE = "since";
+
+    /**
+     * Boolean set to true in the extras of a changes cursor that holds every row, because
+     * the token given as {@link #PARAM_SINCE} could not be served. The client may have missed
+     * deletions, so it must drop the rows it has that are not returned.
+     */
+    public static final String EXTRA_RESYNC = "resync";
+
+    /**
+     * How long the deletions returned by the changes uris are kept, in milliseconds.
+     */
+    public static final long TOMBSTONE_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Columns added to the rows of the changes uris. {@link #DELETED_COL} is 1 for a deleted
+     * row, of which only the _id is set, and 0 otherwise. {@link #CHANGE_TOKEN_COL} holds the
+     * time of the change in milliseconds since the epoch; the largest token seen is passed as
+     * {@link #PARAM_SINCE} on the next query. Rows are ordered by token, so applying them in
+     * order yields the current state. Since tokens are inclusive, a row may be returned again
+     * by the next query.
+     */
+    public static final String DELETED_COL      = "deleted";
+    public static final String CHANGE_TOKEN_COL = "change_token";
+
+    /**
+     * Returns a changes uri restricted to the rows changed at or after the given token.
+     * @param changesUri {@link DataCard#CHANGES_URI} or {@link DataCardImage#CHANGES_URI}
+     * @param since The largest {@link #CHANGE_TOKEN_COL} seen so far
+     */
+    public static Uri buildChangesUri(Uri changesUri, String since) {
+        return changesUri.buildUpon().appendQueryParameter(PARAM_SINCE, since).build();
+    }
+
     public static final class DataCard implements BaseColumns {
         public static final String SUBJECT_COL = "subject";
+        /**
+         * Dates, in milliseconds since the epoch. Selections on the content creation date,
+         * such as the cards created after a given time, are served by an index.
+         */
         public static final String DATE_CONTENT_CREATED_COL = "date_content_created";
         public static final String DATE_CREATED_COL = "date_created";
         public static final String LAST_MODIFIED_COL = "last_modified";
@@ -27,9 +164,93 @@ public class CmHomeContract {
         public static final String ACTION_2_URI_COL = "action_2_uri";
         public static final String PRIORITY_COL = "priority";
 
+        /**
+         * The time after which the card and its images are deleted, in milliseconds since the
+         * epoch, or null if the card does not expire.
+         */
+        public static final String EXPIRES_AT_COL = "expires_at";
+
+        /**
+         * A hash of the card's content, see {@link #computeContentHash(ContentValues)}. When
+         * a write to the uri of a card carries a hash equal to the one stored, the card is
+         * left untouched: its modification date is kept and no change is notified. Writes
+         * without a hash clear the stored one.
+         */
+        public static final String CONTENT_HASH_COL = "content_hash";
+
+        /**
+         * The ranking score of the card, maintained by the provider from the content creation
+         * date, priority and expiration date. Higher scores rank first, see {@link #TOP_URI}.
+         */
+        public static final String SCORE_COL = "score";
+
         public static final Uri CONTENT_URI =
                 Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "datacard");
 
+        /**
+         * The cards changed or deleted since a change token, see {@link #PARAM_SINCE}.
+         */
+        public static final Uri CHANGES_URI =
+                Uri.withAppendedPath(CONTENT_URI, "changes");
+
+        /**
+         * All cards joined with their images, one row per image, in
+         * {@link #SORT_ORDER_DEFAULT} order. The rows of a card are adjacent, and a card
+         * without images has a single row with a null {@link #IMAGE_ID_COL}.
+         */
+        public static final Uri WITH_IMAGES_URI =
+                Uri.withAppendedPath(CONTENT_URI, "withimages");
+
+        /**
+         * The most relevant cards, highest {@link #SCORE_COL} first, read from an index on the
+         * score. Limit the number of cards with {@link #PARAM_LIMIT}, see
+         * {@link #buildTopUri(int)}.
+         */
+        public static final Uri TOP_URI =
+                Uri.withAppendedPath(CONTENT_URI, "top");
+
+        /**
+         * Query parameter of {@link #TOP_URI} holding the maximum number of cards to return.
+         * It must be a positive number, like {@link #PARAM_PAGE_SIZE}.
+         */
+        public static final String PARAM_LIMIT = "limit";
+        public static final int    DEFAULT_TOP_LIMIT = 10;
+
+        /**
+         * The cards whose title, small text or body text match a search, best match first:
+         * the cards with the most matching terms, then the highest {@link #SCORE_COL}. The
+         * search terms are passed in {@link #PARAM_QUERY}, and each matches the words it is
+         * a prefix of. Only the case of ASCII letters is ignored, so terms with other letters
+         * have to match their case. The number of cards is limited to
+         * {@link #PARAM_LIMIT}, or {@link #DEFAULT_SEARCH_LIMIT}. See
+         * {@link #buildSearchUri(String, boolean)}.
+         */
+        public static final Uri SEARCH_URI =
+                Uri.withAppendedPath(CONTENT_URI, "search");
+
+        /**
+         * Query parameter of {@link #SEARCH_URI} holding the search terms.
+         */
+        public static final String PARAM_QUERY = "q";
+
+        /**
+         * Query parameter of {@link #SEARCH_URI}. When set to true, {@link #SNIPPET_COL} holds
+         * an excerpt of the text that matched, with the matching words between
+         * {@link #SNIPPET_MATCH_START} and {@link #SNIPPET_MATCH_END}. The text itself is not
+         * escaped. Otherwise it is null, which is faster.
+         */
+        public static final String PARAM_SNIPPETS = "snippets";
+        public static final String SNIPPET_COL = "snippet";
+        public static final String SNIPPET_MATCH_START = "<b>";
+        public static final String SNIPPET_MATCH_END = "</b>";
+        public static final int    DEFAULT_SEARCH_LIMIT = 50;
+
+        /**
+         * The image columns of {@link #WITH_IMAGES_URI}.
+         */
+        public static final String IMAGE_ID_COL = "image_id";
+        public static final String IMAGE_URI_COL = "image_uri";
+
         public static final String CONTENT_TYPE =
                 ContentResolver.CURSOR_DIR_BASE_TYPE +
                 "/org.cyanogenmod.home.api.datacard";
@@ -42,19 +263,158 @@ public class CmHomeContract {
                 {_ID, SUBJECT_COL, DATE_CONTENT_CREATED_COL, DATE_CREATED_COL, LAST_MODIFIED_COL,
                  CONTENT_SOURCE_IMAGE_URI_COL, AVATAR_IMAGE_URI_COL, TITLE_TEXT_COL,
                  SMALL_TEXT_COL, BODY_TEXT_COL, ACTION_1_TEXT_COL, ACTION_1_URI_COL,
-                 ACTION_2_TEXT_COL, ACTION_2_URI_COL};
+                 ACTION_2_TEXT_COL, ACTION_2_URI_COL, PRIORITY_COL, EXPIRES_AT_COL,
+                 CONTENT_HASH_COL, SCORE_COL};
 
+        public static final String[] PROJECTION_WITH_IMAGES =
+                {_ID, SUBJECT_COL, DATE_CONTENT_CREATED_COL, DATE_CREATED_COL, LAST_MODIFIED_COL,
+                 CONTENT_SOURCE_IMAGE_URI_COL, AVATAR_IMAGE_URI_COL, TITLE_TEXT_COL,
+                 SMALL_TEXT_COL, BODY_TEXT_COL, ACTION_1_TEXT_COL, ACTION_1_URI_COL,
+                 ACTION_2_TEXT_COL, ACTION_2_URI_COL, PRIORITY_COL, EXPIRES_AT_COL,
+                 CONTENT_HASH_COL, SCORE_COL, IMAGE_ID_COL, IMAGE_URI_COL};
+
+        /**
+         * The default sort order. The id breaks ties between cards of the same priority, so
+         * that the order is stable and can be paged through.
+         */
         public static final String SORT_ORDER_DEFAULT =
-                PRIORITY_COL + " ASC";
+                PRIORITY_COL + " ASC, " + _ID + " ASC";
+
+        /**
+         * Query parameter that limits a query on {@link #CONTENT_URI} to a page of at most
+         * this many cards, in {@link #SORT_ORDER_DEFAULT} order.
+         */
+        public static final String PARAM_PAGE_SIZE = "page_size";
+
+        /**
+         * Query parameters for the key of the last card of the previous page. A paged query
+         * returns the cards that come after that card in {@link #SORT_ORDER_DEFAULT} order,
+         * where cards without a priority come first. Leave out {@link #PARAM_AFTER_PRIORITY}
+         * if that card had no priority.
+         */
+        public static final String PARAM_AFTER_PRIORITY = "after_priority";
+        public static final String PARAM_AFTER_ID       = "after_id";
+
+        /**
+         * Returns the {@link #CONTENT_HASH_COL} of a card, given the values of all of its
+         * published columns. The hash does not depend on the order of the values.
+         */
+        public static String computeContentHash(ContentValues values) {
+            StringBuilder content = new StringBuilder();
+            for (String column : new TreeSet<String>(values.keySet())) {
+                if (CONTENT_HASH_COL.equals(column)) {
+                    continue;
+                }
+                Object value = values.get(column);
+                // Separators that cannot occur in column names keep the fields apart, and
+                // null apart from the string "null".
+                content.append(column).append('\u0000');
+                content.append(value == null ? "\u0001" : "\u0002" + value).append('\u0000');
+            }
+            try {
+                return hash(content.toString().getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("UTF-8 is not available", e);
+            }
+        }
+
+        /**
+         * Returns the uri of the given number of most relevant cards.
+         */
+        public static Uri buildTopUri(int limit) {
+            return TOP_URI.buildUpon()
+                          .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                          .build();
+        }
+
+        /**
+         * Returns the uri of the cards matching a search.
+         * @param query The search terms, as typed by the user
+         * @param snippets true to return an excerpt of the matching text in
+         *                 {@link #SNIPPET_COL}
+         */
+        public static Uri buildSearchUri(String query, boolean snippets) {
+            return SEARCH_URI.buildUpon()
+                             .appendQueryParameter(PARAM_QUERY, query)
+                             .appendQueryParameter(PARAM_SNIPPETS, String.valueOf(snippets))
+                             .build();
+        }
+
+        /**
+         * Returns the uri of the first page of cards.
+         * @param pageSize The maximum number of cards in the page
+         */
+        public static Uri buildPageUri(int pageSize) {
+            return CONTENT_URI.buildUpon()
+                              .appendQueryParameter(PARAM_PAGE_SIZE, String.valueOf(pageSize))
+                              .build();
+        }
+
+        /**
+         * Returns the uri of the page of cards that follows the card with the given
+         * priority and id.
+         * @param pageSize The maximum number of cards in the page
+         * @param afterPriority The priority of the last card of the previous page, or null if
+         *                      it had none
+         * @param afterId The id of the last card of the previous page
+         */
+        public static Uri buildPageUri(int pageSize, Integer afterPriority, long afterId) {
+            Uri.Builder builder = buildPageUri(pageSize).buildUpon();
+            if (afterPriority != null) {
+                builder.appendQueryParameter(PARAM_AFTER_PRIORITY, String.valueOf(afterPriority));
+            }
+            return builder.appendQueryParameter(PARAM_AFTER_ID, String.valueOf(afterId))
+                          .build();
+        }
     }
 
     public static final class DataCardImage implements BaseColumns {
         public static final String DATA_CARD_ID_COL = "data_card_id";
         public static final String IMAGE_URI_COL = "image_uri";
+        public static final String LAST_MODIFIED_COL = "last_modified";
+
+        /**
+         * Write-only column holding the encoded image itself, for images that are not
+         * available at a uri. The provider stores the image and sets {@link #IMAGE_URI_COL} to
+         * its {@link #IMAGE_FILE_URI} uri, under the authority the image was written to. The
+         * image is sent in a binder transaction, so it has to stay well below 1 MB.
+         */
+        public static final String IMAGE_DATA_COL = "image_data";
 
         public static final Uri CONTENT_URI =
                 Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "datacardimage");
 
+        /**
+         * The images stored by the provider, which can be opened with
+         * {@link ContentResolver#openInputStream(Uri)}. Identical images are stored once.
+         */
+        public static final Uri IMAGE_FILE_URI =
+                Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "imagefile");
+
+        public static final String IMAGE_FILE_TYPE = "image/*";
+
+        /**
+         * Downsampled copies of the images, for display at small sizes. They are served by
+         * the provider of the publisher of an image, see
+         * {@link #buildThumbnailUri(String, long, int)}. Thumbnails are only made of the
+         * images stored by the provider and of http and https images.
+         */
+        public static final Uri THUMBNAIL_URI =
+                Uri.withAppendedPath(CmHomeContract.CONTENT_URI, "thumbnail");
+
+        /**
+         * Query parameter of thumbnail uris holding the size the thumbnail is displayed at, in
+         * pixels. It is rounded up to one of a few sizes, up to {@link #MAX_THUMBNAIL_SIZE}.
+         */
+        public static final String PARAM_THUMBNAIL_SIZE = "size";
+        public static final int    MAX_THUMBNAIL_SIZE = 512;
+
+        /**
+         * The images changed or deleted since a change token, see {@link #PARAM_SINCE}.
+         */
+        public static final Uri CHANGES_URI =
+                Uri.withAppendedPath(CONTENT_URI, "changes");
+
         public static final String CONTENT_TYPE =
                 ContentResolver.CURSOR_DIR_BASE_TYPE +
                 "/org.cyanogenmod.home.api.datacardimage";
@@ -64,9 +424,54 @@ public class CmHomeContract {
                 "/org.cyanogenmod.home.api.datacardimage";
 
         public static final String[] PROJECTION_ALL =
-                {_ID, DATA_CARD_ID_COL, IMAGE_URI_COL};
+                {_ID, DATA_CARD_ID_COL, IMAGE_URI_COL, LAST_MODIFIED_COL};
 
         public static final String SORT_ORDER_DEFAULT =
                 DATA_CARD_ID_COL + " ASC";
+
+        /**
+         * Returns the uri under which the provider declared under the given authority stores
+         * the given image, named by the SHA-1 hash of its content.
+         */
+        static Uri buildImageFileUri(String authority, byte[] imageData) {
+            return Uri.withAppendedPath(buildUriForAuthority(IMAGE_FILE_URI, authority),
+                                        hash(imageData));
+        }
+
+        /**
+         * Returns the uri of a thumbnail of the image with the given id, which can be opened
+         * with {@link ContentResolver#openInputStream(Uri)}. The thumbnail is generated on the
+         * first request and cached. Its longest side is at least the given size, unless the
+         * image itself is smaller.
+         * @param authority The authority the publisher of the image declares the provider
+         *                  under
+         * @param size The size the thumbnail is displayed at, in pixels
+         */
+        public static Uri buildThumbnailUri(String authority, long imageId, int size) {
+            return buildUriForAuthority(THUMBNAIL_URI, authority).buildUpon()
+                                .appendPath(String.valueOf(imageId))
+                                .appendQueryParameter(PARAM_THUMBNAIL_SIZE, String.valueOf(size))
+                                .build();
+        }
+    }
+
+    /**
+     * Returns the SHA-1 hash of the data, in hexadecimal.
+     */
+    static String hash(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+
+        byte[] hash = digest.digest(data);
+        StringBuilder name = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return name.toString();
     }
 }
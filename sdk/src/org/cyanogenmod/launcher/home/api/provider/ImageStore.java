@@ -0,0 +1,166 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static org.cyanogenmod.launcher.home.api.db.CmHomeDatabaseHelper.DATA_CARD_IMAGE_TABLE_NAME;
+
+/**
+ * Stores the images that publishers hand to CmHomeContentProvider as files, named by the hash
+ * of their content, so that an image published by several cards or several times is stored
+ * once. The files are served read-only through
+ * {@link CmHomeContentProvider#openFile(Uri, String)}.
+ *
+ * Files that no DataCardImage row references any longer are deleted in the background after
+ * images are written or deleted. Files written within the last minute are kept, since the row
+ * that references them may not have been committed yet.
+ */
+class ImageStore {
+    private static final String TAG = "ImageStore";
+    private static final long   COLLECT_DELAY_MS = 10 * 1000;
+    private static final long   GRACE_PERIOD_MS = 60 * 1000;
+    private static final Pattern FILE_NAME_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
+    private final File                 mDirectory;
+    private final CmHomeDatabaseHelper mDatabaseHelper;
+    private final Handler              mHandler;
+
+    private boolean mCollectScheduled;
+
+    private final Runnable mCollectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ImageStore.this) {
+                mCollectScheduled = false;
+            }
+            collect();
+        }
+    };
+
+    /**
+     * @param directory The directory to store the files in
+     * @param handler The Handler that unreferenced files are deleted on
+     */
+    ImageStore(File directory, CmHomeDatabaseHelper databaseHelper, Handler handler) {
+        mDirectory = directory;
+        mDatabaseHelper = databaseHelper;
+        mHandler = handler;
+    }
+
+    /**
+     * Stores an image, unless an identical one is stored already.
+     * @param authority The authority the provider is declared under, and the image written to
+     * @return The {@link CmHomeContract.DataCardImage#IMAGE_FILE_URI} uri of the image.
+     */
+    Uri store(byte[] imageData, String authority) throws IOException {
+        Uri uri = CmHomeContract.DataCardImage.buildImageFileUri(authority, imageData);
+        File file = new File(mDirectory, uri.getLastPathSegment());
+        // Touching the existing file protects it from a collection running until the row
+        // that references it is written.
+        if (file.exists() && file.setLastModified(System.currentTimeMillis())) {
+            return uri;
+        }
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        // Written to a temporary file first, so that readers never see a partial image.
+        File tempFile = File.createTempFile("image", ".tmp", mDirectory);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(imageData);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to store " + file);
+        }
+        return uri;
+    }
+
+    /**
+     * Returns the file of an {@link CmHomeContract.DataCardImage#IMAGE_FILE_URI} uri.
+     */
+    File getFile(Uri uri) {
+        String name = uri.getLastPathSegment();
+        // Only hash names are accepted, so that the uri cannot reach outside the directory.
+        if (name == null || !FILE_NAME_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("Invalid image uri: " + uri);
+        }
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * Schedules the deletion of unreferenced files, after images were written or deleted.
+     */
+    synchronized void onImagesChanged() {
+        if (!mCollectScheduled) {
+            mCollectScheduled = true;
+            mHandler.postDelayed(mCollectRunnable, COLLECT_DELAY_MS);
+        }
+    }
+
+    synchronized void cancel() {
+        mHandler.removeCallbacks(mCollectRunnable);
+        mCollectScheduled = false;
+    }
+
+    private void collect() {
+        File[] files = mDirectory.listFiles();
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        Set<String> referencedNames = getReferencedNames();
+        long cutoff = System.currentTimeMillis() - GRACE_PERIOD_MS;
+        for (File file : files) {
+            if (!referencedNames.contains(file.getName()) && file.lastModified() < cutoff) {
+                if (!file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        }
+    }
+
+    private Set<String> getReferencedNames() {
+        String imageFilePath = CmHomeContract.DataCardImage.IMAGE_FILE_URI.getLastPathSegment();
+        SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
+        Cursor cursor = db.query(true,
+                                 DATA_CARD_IMAGE_TABLE_NAME,
+                                 new String[]{CmHomeContract.DataCardImage.IMAGE_URI_COL},
+                                 null, null, null, null, null, null);
+
+        Set<String> names = new HashSet<String>();
+        try {
+            while (cursor.moveToNext()) {
+                // The uris of stored images may have any authority the provider is declared
+                // under.
+                String imageUri = cursor.getString(0);
+                List<String> segments = imageUri != null ? Uri.parse(imageUri).getPathSegments()
+                                                         : Collections.<String>emptyList();
+                if (segments.size() == 2 && imageFilePath.equals(segments.get(0))) {
+                    names.add(segments.get(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,230 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.os.Bundle;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the latencies and row counts of the calls CmHomeContentProvider serves, per
+ * operation and per uri pattern, along with the durations of its write transactions and the
+ * number of change notifications it sends.
+ *
+ * All counters are preallocated when the provider is created, and updated with atomic
+ * operations only, so recording a call takes no lock and allocates nothing, and the metrics
+ * can stay enabled in production. A reset clears the counters one at a time, so calls that
+ * complete during a reset may be partly counted.
+ */
+class ProviderMetrics {
+    static final int OP_QUERY       = 0;
+    static final int OP_INSERT      = 1;
+    static final int OP_UPDATE      = 2;
+    static final int OP_DELETE      = 3;
+    static final int OP_GET_TYPE    = 4;
+    static final int OP_BULK_INSERT = 5;
+    static final int OP_APPLY_BATCH = 6;
+    static final int OP_CALL        = 7;
+    static final int OP_OPEN_FILE   = 8;
+    private static final String[] OP_NAMES = {"query", "insert", "update", "delete", "get_type",
+                                              "bulk_insert", "apply_batch", "call", "open_file"};
+
+    /**
+     * Latencies are counted in buckets by powers of two of microseconds: bucket 0 counts
+     * latencies below 1 us, bucket i those from 2^(i-1) up to 2^i us, and the last bucket
+     * everything from about 4 s up.
+     */
+    static final int HISTOGRAM_BUCKETS = 24;
+
+    /**
+     * The counters of one operation, or of the transactions.
+     */
+    static class Stats {
+        private final AtomicLong      mCount      = new AtomicLong();
+        private final AtomicLong      mRows       = new AtomicLong();
+        private final AtomicLong      mTotalNanos = new AtomicLong();
+        private final AtomicLong      mMaxNanos   = new AtomicLong();
+        private final AtomicLongArray mHistogram  = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+        void record(long nanos, long rows) {
+            mCount.incrementAndGet();
+            mRows.addAndGet(rows);
+            mTotalNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+            mHistogram.incrementAndGet(getBucket(nanos));
+        }
+
+        private static int getBucket(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+        }
+
+        long getCount() {
+            return mCount.get();
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putLong(CmHomeContract.KEY_METRICS_COUNT, mCount.get());
+            bundle.putLong(CmHomeContract.KEY_METRICS_ROWS, mRows.get());
+            bundle.putLong(CmHomeContract.KEY_METRICS_TOTAL_NANOS, mTotalNanos.get());
+            bundle.putLong(CmHomeContract.KEY_METRICS_MAX_NANOS, mMaxNanos.get());
+            long[] histogram = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram[i] = mHistogram.get(i);
+            }
+            bundle.putLongArray(CmHomeContract.KEY_METRICS_HISTOGRAM, histogram);
+            return bundle;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(CmHomeContract.KEY_METRICS_COUNT, mCount.get());
+            json.put(CmHomeContract.KEY_METRICS_ROWS, mRows.get());
+            json.put(CmHomeContract.KEY_METRICS_TOTAL_NANOS, mTotalNanos.get());
+            json.put(CmHomeContract.KEY_METRICS_MAX_NANOS, mMaxNanos.get());
+            JSONArray histogram = new JSONArray();
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                histogram.put(mHistogram.get(i));
+            }
+            json.put(CmHomeContract.KEY_METRICS_HISTOGRAM, histogram);
+            return json;
+        }
+
+        void reset() {
+            mCount.set(0);
+            mRows.set(0);
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                mHistogram.set(i, 0);
+            }
+        }
+    }
+
+    // The uri patterns, by uri match. Calls on uris that do not match are counted under the
+    // index after the last match, and calls without a uri under the one after that.
+    private final String[]  mMatchNames;
+    private final Stats[][] mOperationStats;
+    private final Stats     mTransactionStats = new Stats();
+    private final AtomicLong mNotifyChangeCount = new AtomicLong();
+    private volatile long    mSinceMillis = System.currentTimeMillis();
+
+    /**
+     * @param matchNames The uri pattern of each uri match, or null for codes that are unused.
+     */
+    ProviderMetrics(String[] matchNames) {
+        mMatchNames = matchNames;
+        mOperationStats = new Stats[OP_NAMES.length][matchNames.length + 2];
+        for (Stats[] operationStats : mOperationStats) {
+            for (int i = 0; i < operationStats.length; i++) {
+                operationStats[i] = new Stats();
+            }
+        }
+    }
+
+    /**
+     * Records a call to the provider.
+     * @param uriMatch The match of the uri called, or UriMatcher.NO_MATCH
+     * @param startNanos The {@link System#nanoTime()} the call started at
+     * @param rows The number of rows returned or written
+     */
+    void recordCall(int operation, int uriMatch, long startNanos, long rows) {
+        int index = uriMatch >= 0 && uriMatch < mMatchNames.length ? uriMatch
+                                                                  : mMatchNames.length;
+        mOperationStats[operation][index].record(System.nanoTime() - startNanos, rows);
+    }
+
+    /**
+     * Records a call to the provider that has no uri, such as applyBatch or call.
+     */
+    void recordCall(int operation, long startNanos, long rows) {
+        mOperationStats[operation][mMatchNames.length + 1]
+                .record(System.nanoTime() - startNanos, rows);
+    }
+
+    /**
+     * Records a write transaction, from the start of the transaction until it ended.
+     * @param rows The number of rows or operations it wrote
+     */
+    void recordTransaction(long startNanos, long rows) {
+        mTransactionStats.record(System.nanoTime() - startNanos, rows);
+    }
+
+    /**
+     * Records a change notification sent to the observers of a uri.
+     */
+    void recordNotifyChange() {
+        mNotifyChangeCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the metrics, in the layout described by {@link CmHomeContract#METHOD_GET_METRICS}.
+     */
+    Bundle toBundle() {
+        Bundle result = new Bundle();
+        for (int operation = 0; operation < OP_NAMES.length; operation++) {
+            for (int i = 0; i < mOperationStats[operation].length; i++) {
+                Stats stats = mOperationStats[operation][i];
+                if (stats.getCount() > 0) {
+                    result.putBundle(getCallName(operation, i), stats.toBundle());
+                }
+            }
+        }
+        result.putBundle(CmHomeContract.KEY_METRICS_TRANSACTIONS, mTransactionStats.toBundle());
+        result.putLong(CmHomeContract.KEY_METRICS_NOTIFY_CHANGES, mNotifyChangeCount.get());
+        result.putLong(CmHomeContract.KEY_METRICS_SINCE, mSinceMillis);
+        return result;
+    }
+
+    /**
+     * Returns the metrics as a JSON object, with the same keys as {@link #toBundle()}, so
+     * that they can be stored and compared across runs and releases.
+     */
+    String toJson() {
+        try {
+            JSONObject json = new JSONObject();
+            for (int operation = 0; operation < OP_NAMES.length; operation++) {
+                for (int i = 0; i < mOperationStats[operation].length; i++) {
+                    Stats stats = mOperationStats[operation][i];
+                    if (stats.getCount() > 0) {
+                        json.put(getCallName(operation, i), stats.toJson());
+                    }
+                }
+            }
+            json.put(CmHomeContract.KEY_METRICS_TRANSACTIONS, mTransactionStats.toJson());
+            json.put(CmHomeContract.KEY_METRICS_NOTIFY_CHANGES, mNotifyChangeCount.get());
+            json.put(CmHomeContract.KEY_METRICS_SINCE, mSinceMillis);
+            return json.toString();
+        } catch (JSONException e) {
+            // Only thrown for non-finite doubles, and all values are longs.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String getCallName(int operation, int matchIndex) {
+        if (matchIndex > mMatchNames.length) {
+            return OP_NAMES[operation];
+        }
+        String matchName = matchIndex < mMatchNames.length ? mMatchNames[matchIndex]
+                                                           : "unmatched";
+        return OP_NAMES[operation] + " " + matchName;
+    }
+
+    void reset() {
+        for (Stats[] operationStats : mOperationStats) {
+            for (Stats stats : operationStats) {
+                stats.reset();
+            }
+        }
+        mTransactionStats.reset();
+        mNotifyChangeCount.set(0);
+        mSinceMillis = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,233 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the rows that CmHomeContentProvider serves on its item uris, so that repeated
+ * lookups of the same card or image do not query SQLite. Rows are cached with all of their
+ * columns, and the cache is bounded by the approximate memory its rows take up.
+ *
+ * Writes invalidate the rows they change. Each table also has a generation that every
+ * invalidation increments. A row read from the database is only cached if the generation of
+ * its table did not change during the read, so that a read racing with a write cannot cache
+ * the row as it was before the write.
+ */
+class RowCache {
+    // Approximate overhead of a cached row, and of each of its values.
+    private static final int ROW_OVERHEAD_BYTES   = 32;
+    private static final int VALUE_OVERHEAD_BYTES = 16;
+
+    private final LruCache<String, Object[]> mRows;
+    private final Map<String, Long>          mGenerations = new HashMap<String, Long>();
+
+    private final AtomicLong mHitCount  = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param maxBytes The approximate memory the cached rows may take up, or 0 to disable
+     *                 the cache.
+     */
+    RowCache(int maxBytes) {
+        if (maxBytes <= 0) {
+            mRows = null;
+            return;
+        }
+
+        mRows = new LruCache<String, Object[]>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Object[] row) {
+                return estimateSize(row);
+            }
+        };
+    }
+
+    /**
+     * Returns whether a query with the given projection can be served from the cache.
+     * @param columns All columns of the table, in the order they are cached in.
+     */
+    boolean canQuery(String[] columns, String[] projection) {
+        if (mRows == null) {
+            return false;
+        }
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (indexOf(columns, column) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the row of the table with the given id, from the cache if possible.
+     * Only call this if {@link #canQuery} returned true for the projection.
+     * @param columns All columns of the table, in the order they are cached in.
+     * @param projection The columns to return, or null for all columns.
+     * @return A cursor holding the row, or no row if it does not exist.
+     */
+    Cursor query(SQLiteDatabase db, String table, String[] columns, long id,
+                 String[] projection) {
+        String key = getKey(table, id);
+        Object[] row = mRows.get(key);
+        if (row != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+            long generation = getGeneration(table);
+            row = load(db, table, columns, id);
+            if (row != null) {
+                synchronized (this) {
+                    if (generation == getGeneration(table)) {
+                        mRows.put(key, row);
+                    }
+                }
+            }
+        }
+
+        if (projection == null) {
+            projection = columns;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (row != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[indexOf(columns, projection[i])];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static Object[] load(SQLiteDatabase db, String table, String[] columns, long id) {
+        Cursor cursor = db.query(table, columns, BaseColumns._ID + " = ?",
+                                 new String[]{String.valueOf(id)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+
+            Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Removes the row of the table with the given id.
+     */
+    void invalidateRow(String table, long id) {
+        if (mRows == null) {
+            return;
+        }
+        synchronized (this) {
+            incrementGeneration(table);
+            mRows.remove(getKey(table, id));
+        }
+    }
+
+    /**
+     * Removes all rows of the table, for writes that may have changed any of them.
+     */
+    void invalidateTable(String table) {
+        if (mRows == null) {
+            return;
+        }
+        String prefix = table + "/";
+        synchronized (this) {
+            incrementGeneration(table);
+            for (String key : mRows.snapshot().keySet()) {
+                if (key.startsWith(prefix)) {
+                    mRows.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all rows.
+     */
+    void clear() {
+        if (mRows == null) {
+            return;
+        }
+        synchronized (this) {
+            for (String table : mGenerations.keySet()) {
+                incrementGeneration(table);
+            }
+            mRows.evictAll();
+        }
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    private synchronized long getGeneration(String table) {
+        Long generation = mGenerations.get(table);
+        return generation != null ? generation : 0;
+    }
+
+    private synchronized void incrementGeneration(String table) {
+        mGenerations.put(table, getGeneration(table) + 1);
+    }
+
+    private static String getKey(String table, long id) {
+        return table + "/" + id;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int estimateSize(Object[] row) {
+        int size = ROW_OVERHEAD_BYTES;
+        for (Object value : row) {
+            size += VALUE_OVERHEAD_BYTES;
+            if (value instanceof String) {
+                size += ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                size += ((byte[]) value).length;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,183 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Keeps compiled statements for the single row writes CmHomeContentProvider performs most:
+ * inserts, and updates and deletes by id. The row id and values are bound as arguments, so a
+ * statement is compiled once per table and set of columns instead of once per call.
+ *
+ * A statement is taken out of the cache while a thread binds and executes it, and put back
+ * afterwards. A thread that finds the statement in use compiles its own, instead of waiting on
+ * a thread that may in turn be waiting for the database connection it holds.
+ */
+class StatementCache {
+    private static final String TAG = "StatementCache";
+    private static final int MAX_STATEMENTS = 32;
+
+    private final LruCache<String, SQLiteStatement> mStatements =
+            new LruCache<String, SQLiteStatement>(MAX_STATEMENTS) {
+                @Override
+                protected void entryRemoved(boolean evicted, String sql,
+                                            SQLiteStatement oldStatement,
+                                            SQLiteStatement newStatement) {
+                    // Statements removed to be used are still open, only close the ones
+                    // that are evicted or replaced.
+                    if (evicted || newStatement != null) {
+                        oldStatement.close();
+                    }
+                }
+            };
+
+    /**
+     * Inserts a row, with the same semantics as {@link SQLiteDatabase#insert}.
+     * @return The id of the new row, or -1 if an error occurred.
+     */
+    long insert(SQLiteDatabase db, String table, ContentValues values) {
+        StringBuilder sql = new StringBuilder(128);
+        sql.append("INSERT INTO ").append(table);
+        if (values.size() == 0) {
+            sql.append(" DEFAULT VALUES");
+        } else {
+            sql.append('(');
+            appendColumns(sql, values, "", ",");
+            sql.append(") VALUES (");
+            for (int i = 0; i < values.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(')');
+        }
+
+        String key = sql.toString();
+        SQLiteStatement statement = null;
+        try {
+            statement = acquireStatement(db, key);
+            bindValues(statement, values);
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting into " + table, e);
+            return -1;
+        } finally {
+            if (statement != null) {
+                releaseStatement(key, statement);
+            }
+        }
+    }
+
+    /**
+     * Updates the row with the given id.
+     * @return The number of rows updated.
+     */
+    int updateById(SQLiteDatabase db, String table, long id, ContentValues values) {
+        return updateById(db, table, id, values, null);
+    }
+
+    /**
+     * Updates the row with the given id, unless the value of the given column already is the
+     * one in the values.
+     * @param column A column of the values, or null to always update the row.
+     * @return The number of rows updated.
+     */
+    int updateById(SQLiteDatabase db, String table, long id, ContentValues values,
+                   String column) {
+        if (values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        StringBuilder sql = new StringBuilder(128);
+        sql.append("UPDATE ").append(table).append(" SET ");
+        appendColumns(sql, values, "=?", ",");
+        sql.append(" WHERE ").append(BaseColumns._ID).append("=?");
+        if (column != null) {
+            sql.append(" AND ").append(column).append(" IS NOT ?");
+        }
+
+        String key = sql.toString();
+        SQLiteStatement statement = acquireStatement(db, key);
+        try {
+            int index = bindValues(statement, values);
+            statement.bindLong(index++, id);
+            if (column != null) {
+                DatabaseUtils.bindObjectToProgram(statement, index, values.get(column));
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            releaseStatement(key, statement);
+        }
+    }
+
+    /**
+     * Deletes the row with the given id.
+     * @return The number of rows deleted.
+     */
+    int deleteById(SQLiteDatabase db, String table, long id) {
+        String key = "DELETE FROM " + table + " WHERE " + BaseColumns._ID + "=?";
+        SQLiteStatement statement = acquireStatement(db, key);
+        try {
+            statement.bindLong(1, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            releaseStatement(key, statement);
+        }
+    }
+
+    private SQLiteStatement acquireStatement(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement;
+        synchronized (mStatements) {
+            statement = mStatements.remove(sql);
+        }
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+        }
+        return statement;
+    }
+
+    private void releaseStatement(String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (mStatements) {
+            mStatements.put(sql, statement);
+        }
+    }
+
+    private static void appendColumns(StringBuilder sql, ContentValues values, String suffix,
+                                      String separator) {
+        boolean first = true;
+        for (String column : values.keySet()) {
+            if (!first) {
+                sql.append(separator);
+            }
+            sql.append(column).append(suffix);
+            first = false;
+        }
+    }
+
+    /**
+     * Binds the values in the same order as {@link #appendColumns} wrote their columns.
+     * @return The index of the next argument to bind.
+     */
+    private static int bindValues(SQLiteStatement statement, ContentValues values) {
+        int index = 1;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            DatabaseUtils.bindObjectToProgram(statement, index++, entry.getValue());
+        }
+        return index;
+    }
+
+    /**
+     * Closes all cached statements.
+     */
+    void clear() {
+        synchronized (mStatements) {
+            mStatements.evictAll();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches downsampled copies of card images on disk, so that CM Home decodes small thumbnails
+ * instead of full resolution images when it renders cards. Thumbnails are generated for a few
+ * fixed sizes, keyed by the image uri, and the least recently used ones are deleted once the
+ * cache exceeds its byte budget.
+ *
+ * The source images are decoded with the smallest sample size that keeps them at least as
+ * large as the thumbnail, which bounds the memory a decode takes up.
+ */
+class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+    private static final int[]  SIZES =
+            {64, 128, 256, CmHomeContract.DataCardImage.MAX_THUMBNAIL_SIZE};
+    private static final int    JPEG_QUALITY = 85;
+    private static final int    DOWNLOAD_TIMEOUT_MS = 10 * 1000;
+    private static final int    MAX_DOWNLOAD_BYTES = 4 * 1024 * 1024;
+
+    interface Source {
+        /**
+         * Opens the full resolution image. It may be called more than once.
+         */
+        InputStream open() throws IOException;
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // The cached files and their sizes, least recently used first. Loaded from the directory
+    // on first use.
+    private Map<String, Long> mEntries;
+    private long              mTotalBytes;
+
+    /**
+     * @param directory The directory to keep the thumbnails in
+     * @param maxBytes The number of bytes the thumbnails may take up
+     */
+    ThumbnailCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a source that reads an image from a file.
+     */
+    static Source fileSource(final File file) {
+        return new Source() {
+            @Override
+            public InputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    /**
+     * Returns a source that downloads an http or https image on its first use, and keeps it
+     * in memory for the decodes that follow. Images larger than 4 MB are refused.
+     */
+    static Source downloadSource(final String url) {
+        return new Source() {
+            private byte[] mImageData;
+
+            @Override
+            public InputStream open() throws IOException {
+                if (mImageData == null) {
+                    mImageData = download(new URL(url));
+                }
+                return new ByteArrayInputStream(mImageData);
+            }
+        };
+    }
+
+    private static byte[] download(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(DOWNLOAD_TIMEOUT_MS);
+        connection.setReadTimeout(DOWNLOAD_TIMEOUT_MS);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unable to download " + url + ": " +
+                                      connection.getResponseCode());
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    if (out.size() + count > MAX_DOWNLOAD_BYTES) {
+                        throw new IOException("Image too large: " + url);
+                    }
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Returns the size thumbnails displayed at the given size are generated at.
+     */
+    static int getBucketSize(int size) {
+        for (int bucketSize : SIZES) {
+            if (size <= bucketSize) {
+                return bucketSize;
+            }
+        }
+        return SIZES[SIZES.length - 1];
+    }
+
+    /**
+     * Returns the thumbnail file of an image, generating it if it is not cached.
+     * @param imageUri The uri of the image, which identifies its thumbnails
+     * @param size The size of the thumbnail, as returned by {@link #getBucketSize(int)}
+     */
+    File getThumbnail(String imageUri, int size, Source source) throws IOException {
+        String name = CmHomeContract.hash(imageUri.getBytes("UTF-8")) + "_" + size;
+        File file = new File(mDirectory, name);
+        synchronized (this) {
+            loadEntries();
+            if (mEntries.containsKey(name) && file.exists()) {
+                // Accessing the entry moves it to the end of the order.
+                mEntries.get(name);
+                file.setLastModified(System.currentTimeMillis());
+                return file;
+            }
+        }
+
+        // Thumbnails are generated outside the lock, so that a slow source does not hold up
+        // thumbnails that are cached. Concurrent requests for the same one may generate it
+        // twice, and the last one written wins.
+        Bitmap thumbnail = decode(source, size);
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File tempFile = File.createTempFile("thumbnail", ".tmp", mDirectory);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            if (thumbnail.hasAlpha()) {
+                thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                thumbnail.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+            }
+        } finally {
+            out.close();
+            thumbnail.recycle();
+        }
+
+        synchronized (this) {
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Unable to store " + file);
+            }
+            Long previousBytes = mEntries.put(name, file.length());
+            if (previousBytes != null) {
+                mTotalBytes -= previousBytes;
+            }
+            mTotalBytes += file.length();
+            trim(name);
+        }
+        return file;
+    }
+
+    private static Bitmap decode(Source source, int size) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Unable to decode image");
+        }
+
+        int longestSide = Math.max(options.outWidth, options.outHeight);
+        options.inSampleSize = 1;
+        while (longestSide / (options.inSampleSize * 2) >= size) {
+            options.inSampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = decodeStream(source, options);
+        if (bitmap == null) {
+            throw new IOException("Unable to decode image");
+        }
+
+        // Sampling only divides by powers of two, scale the rest of the way.
+        longestSide = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (longestSide <= size) {
+            return bitmap;
+        }
+        float scale = (float) size / longestSide;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+
+    private static Bitmap decodeStream(Source source, BitmapFactory.Options options)
+            throws IOException {
+        InputStream in = source.open();
+        if (in == null) {
+            throw new IOException("Unable to open image");
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void loadEntries() {
+        if (mEntries != null) {
+            return;
+        }
+
+        mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // The modification time is updated on every use, so it restores the order.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        List<File> tempFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                tempFiles.add(file);
+            } else {
+                mEntries.put(file.getName(), file.length());
+                mTotalBytes += file.length();
+            }
+        }
+        // Left behind by generations that did not complete.
+        for (File file : tempFiles) {
+            file.delete();
+        }
+        trim(null);
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until the cache fits its budget.
+     * @param keepName A thumbnail that is about to be returned, and must not be deleted.
+     */
+    private void trim(String keepName) {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keepName)) {
+                continue;
+            }
+            File file = new File(mDirectory, entry.getKey());
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "Unable to delete " + file);
+            }
+            mTotalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+}
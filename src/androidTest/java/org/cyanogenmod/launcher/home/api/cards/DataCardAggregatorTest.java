@@ -0,0 +1,124 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContentProvider;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merges the cards of several publishers, played by one provider registered under the
+ * authorities of each.
+ */
+@SmallTest
+public class DataCardAggregatorTest extends ProviderTestCase2<CmHomeContentProvider> {
+    private static final String FIRST_AUTHORITY  = "org.example.first" +
+                                                   CmHomeContract.AUTHORITY_SUFFIX;
+    private static final String SECOND_AUTHORITY = "org.example.second" +
+                                                   CmHomeContract.AUTHORITY_SUFFIX;
+
+    private DataCardAggregator mAggregator;
+
+    public DataCardAggregatorTest() {
+        super(CmHomeContentProvider.class, CmHomeContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final MockContentResolver resolver = getMockContentResolver();
+        resolver.addProvider(FIRST_AUTHORITY, getProvider());
+        resolver.addProvider(SECOND_AUTHORITY, getProvider());
+
+        // The aggregator keeps the application context, which has to resolve to the mocks.
+        Context context = new ContextWrapper(getMockContext()) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+        mAggregator = new DataCardAggregator(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAggregator.shutdown();
+        super.tearDown();
+    }
+
+    public void testMergesPublishersByPriority() {
+        insertCard(2);
+        insertCard(1);
+
+        DataCardMergeCursor cursor =
+                mAggregator.query(Arrays.asList(FIRST_AUTHORITY, SECOND_AUTHORITY), null);
+        try {
+            assertEquals(4, cursor.getCount());
+            List<String> rows = new ArrayList<String>();
+            int priorityIndex = cursor.getColumnIndexOrThrow(CmHomeContract.DataCard.PRIORITY_COL);
+            while (cursor.moveToNext()) {
+                rows.add(cursor.getInt(priorityIndex) + " " + cursor.getAuthority());
+            }
+            // Cards of equal priority keep the order of the authorities.
+            assertEquals(Arrays.asList("1 " + FIRST_AUTHORITY, "1 " + SECOND_AUTHORITY,
+                                       "2 " + FIRST_AUTHORITY, "2 " + SECOND_AUTHORITY), rows);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testLeavesOutMissingPublishers() {
+        insertCard(1);
+
+        DataCardMergeCursor cursor = mAggregator.query(
+                Arrays.asList("org.example.missing" + CmHomeContract.AUTHORITY_SUFFIX,
+                              FIRST_AUTHORITY), null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(FIRST_AUTHORITY, cursor.getAuthority());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testQueriesMorePublishersThanThreads() {
+        insertCard(1);
+
+        // The queries that wait for a thread of the pool are not left out.
+        List<String> authorities = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            String authority = "org.example.publisher" + i + CmHomeContract.AUTHORITY_SUFFIX;
+            getMockContentResolver().addProvider(authority, getProvider());
+            authorities.add(authority);
+        }
+        DataCardMergeCursor cursor = mAggregator.query(authorities, null);
+        try {
+            assertEquals(authorities.size(), cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertCard(int priority) {
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCard.SUBJECT_COL, "subject");
+        values.put(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL, System.currentTimeMillis());
+        values.put(CmHomeContract.DataCard.PRIORITY_COL, priority);
+        assertNotNull(getMockContentResolver().insert(CmHomeContract.DataCard.CONTENT_URI,
+                                                      values));
+    }
+}
@@ -0,0 +1,106 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContentProvider;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes cards asynchronously, and checks what was written and what the callbacks got.
+ */
+@SmallTest
+public class DataCardPublisherTest extends ProviderTestCase2<CmHomeContentProvider> {
+    private static final long TIMEOUT_MS = 5000;
+
+    private Context mContext;
+
+    public DataCardPublisherTest() {
+        super(CmHomeContentProvider.class, CmHomeContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // The publisher keeps the application context, which has to resolve to the mocks.
+        mContext = new ContextWrapper(getMockContext()) {
+            @Override
+            public Context getApplicationContext() {
+                return this;
+            }
+
+            @Override
+            public ContentResolver getContentResolver() {
+                return getMockContentResolver();
+            }
+        };
+    }
+
+    public void testPublishesNewCard() throws InterruptedException {
+        DataCard dataCard = new DataCard("subject", new Date());
+        dataCard.setTitle("title");
+        Callback callback = new Callback(1);
+        dataCard.publishAsync(mContext, callback);
+        callback.await();
+
+        assertEquals(1, callback.mPublished.size());
+        assertSame(dataCard, callback.mPublished.get(0));
+        List<DataCard> published = DataCard.getAllPublishedDataCards(mContext);
+        assertEquals(1, published.size());
+        assertEquals("title", published.get(0).getTitle());
+    }
+
+    public void testCoalescesInstancesOfSameCard() throws InterruptedException {
+        DataCard dataCard = new DataCard("subject", new Date());
+        assertTrue(dataCard.publish(mContext));
+
+        // Two instances of the published card, each changing a different field.
+        DataCard first = DataCard.getAllPublishedDataCards(mContext).get(0);
+        DataCard second = DataCard.getAllPublishedDataCards(mContext).get(0);
+        first.setTitle("title");
+        second.setBodyText("body");
+        Callback callback = new Callback(3);
+        first.publishAsync(mContext, callback);
+        second.publishAsync(mContext, callback);
+        first.publishAsync(mContext, callback);
+        callback.await();
+
+        // Each publish gets its own callback, with its own card.
+        assertEquals(3, callback.mPublished.size());
+        assertTrue(callback.mPublished.contains(first));
+        assertTrue(callback.mPublished.contains(second));
+
+        List<DataCard> published = DataCard.getAllPublishedDataCards(mContext);
+        assertEquals(1, published.size());
+        assertEquals("title", published.get(0).getTitle());
+        assertEquals("body", published.get(0).getBodyText());
+    }
+
+    private static class Callback implements DataCard.PublishCallback {
+        final List<DataCard>        mPublished = new ArrayList<DataCard>();
+        private final CountDownLatch mLatch;
+
+        Callback(int count) {
+            mLatch = new CountDownLatch(count);
+        }
+
+        @Override
+        public synchronized void onPublished(DataCard dataCard, boolean success) {
+            assertTrue(success);
+            mPublished.add(dataCard);
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(mLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.cyanogenmod.launcher.home.api.cards;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContentProvider;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Publishes cards synchronously, and checks what was written.
+ */
+@SmallTest
+public class DataCardTest extends ProviderTestCase2<CmHomeContentProvider> {
+    public DataCardTest() {
+        super(CmHomeContentProvider.class, CmHomeContract.AUTHORITY);
+    }
+
+    public void testRepublishesDeletedCardWithImages() {
+        DataCard deleted = createCard("deleted");
+        DataCard kept = createCard("kept");
+        assertTrue(DataCard.publishAll(getMockContext(), Arrays.asList(deleted, kept)));
+
+        // The card's images are deleted along with it.
+        assertEquals(1, getMockContentResolver().delete(
+                ContentUris.withAppendedId(CmHomeContract.DataCard.CONTENT_URI, deleted.getId()),
+                null, null));
+        assertEquals(0, countImages(deleted.getId()));
+
+        // The update of the deleted card fails the batch, which is retried with every field
+        // and image of both cards.
+        deleted.setTitle("changed");
+        kept.setTitle("changed");
+        assertTrue(DataCard.publishAll(getMockContext(), Arrays.asList(deleted, kept)));
+        assertEquals(2, DataCard.getAllPublishedDataCards(getMockContext()).size());
+        assertEquals(1, countImages(deleted.getId()));
+        assertEquals(1, countImages(kept.getId()));
+    }
+
+    private static DataCard createCard(String title) {
+        DataCard dataCard = new DataCard("subject", new Date());
+        dataCard.setTitle(title);
+        dataCard.addDataCardImage(Uri.parse("http://example.com/" + title + ".png"));
+        return dataCard;
+    }
+
+    private int countImages(int dataCardId) {
+        Cursor cursor = getMockContentResolver().query(
+                CmHomeContract.DataCardImage.CONTENT_URI,
+                new String[]{CmHomeContract.DataCardImage._ID},
+                CmHomeContract.DataCardImage.DATA_CARD_ID_COL + " = ?",
+                new String[]{String.valueOf(dataCardId)},
+                null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+}
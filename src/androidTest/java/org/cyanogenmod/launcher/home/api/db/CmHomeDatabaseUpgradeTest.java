@@ -0,0 +1,355 @@
+package org.cyanogenmod.launcher.home.api.db;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import org.cyanogenmod.launcher.home.api.provider.CmHomeContract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Upgrades a fixture database of the version 1 schema, as released, to the current version,
+ * and checks the resulting schema and data against a newly created database.
+ */
+@SmallTest
+public class CmHomeDatabaseUpgradeTest extends AndroidTestCase {
+    private static final int CURRENT_VERSION = 8;
+
+    // The version 1 schema, as created by the first release.
+    private static final String[] VERSION_1_SCHEMA = {
+            "CREATE TABLE DataCard(_id INTEGER PRIMARY KEY," +
+            "subject TEXT NOT NULL," +
+            "date_content_created TEXT NOT NULL," +
+            "date_created TEXT DEFAULT CURRENT_TIMESTAMP NOT NULL," +
+            "last_modified TEXT DEFAULT CURRENT_TIMESTAMP NOT NULL," +
+            "content_source_image_uri TEXT DEFAULT NULL," +
+            "avatar_image_uri TEXT DEFAULT NULL," +
+            "title_text TEXT DEFAULT NULL," +
+            "small_text TEXT DEFAULT NULL," +
+            "body_text TEXT DEFAULT NULL," +
+            "action_1_text TEXT DEFAULT NULL," +
+            "action_1_uri TEXT DEFAULT NULL," +
+            "action_2_text TEXT DEFAULT NULL," +
+            "action_2_uri TEXT DEFAULT NULL," +
+            "priority INTEGER DEFAULT NULL);",
+            "CREATE TRIGGER data_card_update_time_trigger AFTER UPDATE ON DataCard " +
+            "FOR EACH ROW BEGIN UPDATE DataCard SET last_modified = CURRENT_TIMESTAMP " +
+            "WHERE _id = old._id; END",
+            "CREATE TABLE DataCardImage(_id INTEGER PRIMARY KEY," +
+            "data_card_id INTEGER NOT NULL," +
+            "image_uri TEXT NOT NULL," +
+            "FOREIGN KEY(data_card_id) REFERENCES DataCard(_id));"};
+
+    // Rows as the first release wrote them: dates as CURRENT_TIMESTAMP text, the content
+    // creation date as text, and the second action's uri in the priority column.
+    private static final String[] VERSION_1_DATA = {
+            "INSERT INTO DataCard(_id, subject, date_content_created, date_created, " +
+            "last_modified, title_text, body_text, priority) VALUES (1, 'news', " +
+            "'1401620400000', '2014-06-01 12:00:00', '2014-06-02 08:30:00', 'Weather', " +
+            "'Rain expected tomorrow', 2)",
+            "INSERT INTO DataCard(_id, subject, date_content_created, date_created, " +
+            "last_modified, title_text, action_2_uri, priority) VALUES (2, 'social', " +
+            "'1401706800000', '2014-06-02 12:00:00', '2014-06-02 12:00:00', 'Photos', " +
+            "'http://example.com/photos', 'http://example.com/photos')",
+            "INSERT INTO DataCardImage(_id, data_card_id, image_uri) VALUES " +
+            "(1, 1, 'http://example.com/rain.png')",
+            "INSERT INTO DataCardImage(_id, data_card_id, image_uri) VALUES " +
+            "(2, 2, 'http://example.com/photo.png')"};
+
+    private static final String[] INDEXES = {
+            "data_card_date_content_created_index",
+            "data_card_expires_at_index",
+            "data_card_image_data_card_id_index",
+            "data_card_image_last_modified_index",
+            "data_card_last_modified_index",
+            "data_card_priority_index",
+            "data_card_score_index",
+            "tombstone_date_deleted_index"};
+
+    private static final String[] TRIGGERS = {
+            "data_card_image_cascade_trigger",
+            "data_card_image_tombstone_trigger",
+            "data_card_search_after_update_trigger",
+            "data_card_search_before_update_trigger",
+            "data_card_search_delete_trigger",
+            "data_card_search_insert_trigger",
+            "data_card_tombstone_trigger"};
+
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        for (String statement : VERSION_1_SCHEMA) {
+            mDatabase.execSQL(statement);
+        }
+        for (String statement : VERSION_1_DATA) {
+            mDatabase.execSQL(statement);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testMigratesToCurrentVersion() {
+        SchemaMigrator migrator = CmHomeDatabaseHelper.getSchemaMigrator();
+        assertEquals(CURRENT_VERSION, migrator.getLatestVersion());
+        assertTrue(migrator.canMigrate(1, CURRENT_VERSION));
+        assertFalse(migrator.canMigrate(CURRENT_VERSION, 1));
+        assertFalse(migrator.canMigrate(1, CURRENT_VERSION + 1));
+    }
+
+    public void testUpgradedColumns() {
+        upgrade();
+
+        assertEquals(Arrays.asList(CmHomeContract.DataCard.PROJECTION_ALL),
+                     getColumns(CmHomeDatabaseHelper.DATA_CARD_TABLE_NAME));
+        assertEquals(Arrays.asList(CmHomeContract.DataCardImage.PROJECTION_ALL),
+                     getColumns(CmHomeDatabaseHelper.DATA_CARD_IMAGE_TABLE_NAME));
+        assertEquals(Arrays.asList("_id", CmHomeDatabaseHelper.TOMBSTONE_TABLE_COL,
+                                   CmHomeDatabaseHelper.TOMBSTONE_ROW_ID_COL,
+                                   CmHomeDatabaseHelper.TOMBSTONE_DATE_DELETED_COL),
+                     getColumns(CmHomeDatabaseHelper.TOMBSTONE_TABLE_NAME));
+
+        assertEquals("INTEGER", getColumnType(CmHomeDatabaseHelper.DATA_CARD_TABLE_NAME,
+                                              CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL));
+        assertEquals("INTEGER", getColumnType(CmHomeDatabaseHelper.DATA_CARD_TABLE_NAME,
+                                              CmHomeContract.DataCard.DATE_CREATED_COL));
+        assertEquals("INTEGER", getColumnType(CmHomeDatabaseHelper.DATA_CARD_TABLE_NAME,
+                                              CmHomeContract.DataCard.LAST_MODIFIED_COL));
+        assertEquals("INTEGER",
+                     getColumnType(CmHomeDatabaseHelper.DATA_CARD_IMAGE_TABLE_NAME,
+                                   CmHomeContract.DataCardImage.LAST_MODIFIED_COL));
+        assertEquals("INTEGER", getColumnType(CmHomeDatabaseHelper.TOMBSTONE_TABLE_NAME,
+                                              CmHomeDatabaseHelper.TOMBSTONE_DATE_DELETED_COL));
+    }
+
+    public void testUpgradedIndexesAndTriggers() {
+        upgrade();
+
+        assertEquals(new TreeSet<String>(Arrays.asList(INDEXES)), getSchemaNames("index"));
+        assertEquals(new TreeSet<String>(Arrays.asList(TRIGGERS)), getSchemaNames("trigger"));
+    }
+
+    public void testUpgradedSchemaMatchesNewDatabase() {
+        upgrade();
+
+        SQLiteDatabase newDatabase = SQLiteDatabase.create(null);
+        try {
+            new CmHomeDatabaseHelper(getContext()).onCreate(newDatabase);
+            assertEquals(getSchema(newDatabase), getSchema(mDatabase));
+        } finally {
+            newDatabase.close();
+        }
+    }
+
+    public void testUpgradeConvertsDates() {
+        upgrade();
+
+        Cursor cursor = mDatabase.rawQuery("SELECT date_content_created, date_created, " +
+                                           "last_modified, typeof(date_content_created) " +
+                                           "FROM DataCard WHERE _id = 1", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1401620400000L, cursor.getLong(0));
+            // 2014-06-01 12:00:00 and 2014-06-02 08:30:00 UTC.
+            assertEquals(1401624000000L, cursor.getLong(1));
+            assertEquals(1401697800000L, cursor.getLong(2));
+            assertEquals("integer", cursor.getString(3));
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, "DataCardImage",
+                                                      "typeof(last_modified) != 'integer'"));
+    }
+
+    public void testUpgradeComputesScores() {
+        upgrade();
+
+        // A medium priority card ranks like a card created half a day later.
+        assertEquals(1401620400000L + 12 * 60 * 60 * 1000,
+                     DatabaseUtils.longForQuery(mDatabase,
+                                                "SELECT score FROM DataCard WHERE _id = 1",
+                                                null));
+    }
+
+    public void testUpgradeReplacesLegacyPriorities() {
+        upgrade();
+
+        // The uri written as priority becomes the low priority DataCard read it as.
+        Cursor cursor = mDatabase.rawQuery("SELECT priority, typeof(priority), score " +
+                                           "FROM DataCard WHERE _id = 2", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getInt(0));
+            assertEquals("integer", cursor.getString(1));
+            assertEquals(1401706800000L, cursor.getLong(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testUpgradedTriggers() {
+        upgrade();
+
+        mDatabase.execSQL("DELETE FROM DataCard WHERE _id = 1");
+
+        // The card's images are deleted with it, and both leave a tombstone.
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, "DataCardImage",
+                                                      "data_card_id = 1"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDatabase, "Tombstone",
+                                                      "table_name = 'DataCard' AND " +
+                                                      "row_id = 1"));
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDatabase, "Tombstone",
+                                                      "table_name = 'DataCardImage' AND " +
+                                                      "row_id = 1"));
+
+        // Updates no longer set the modification date through a trigger.
+        mDatabase.execSQL("UPDATE DataCard SET last_modified = 5 WHERE _id = 2");
+        assertEquals(5, DatabaseUtils.longForQuery(mDatabase,
+                "SELECT last_modified FROM DataCard WHERE _id = 2", null));
+    }
+
+    public void testUpgradeIndexesExistingText() {
+        upgrade();
+
+        assertEquals(Arrays.asList(1L), search("rain"));
+        assertEquals(Arrays.asList(2L), search("photos"));
+
+        mDatabase.execSQL("UPDATE DataCard SET title_text = 'Sunshine' WHERE _id = 1");
+        assertEquals(Arrays.asList(1L), search("sunshine"));
+        assertEquals(Arrays.<Long>asList(), search("weather"));
+
+        mDatabase.execSQL("DELETE FROM DataCard WHERE _id = 2");
+        assertEquals(Arrays.<Long>asList(), search("photos"));
+    }
+
+    public void testFailedMigrationLeavesDatabaseUnchanged() {
+        SchemaMigrator migrator = new SchemaMigrator(
+                new SchemaMigration(2) {
+                    @Override
+                    public void migrate(SQLiteDatabase database) {
+                        database.execSQL("CREATE TABLE Extra(_id INTEGER PRIMARY KEY)");
+                    }
+                },
+                new SchemaMigration(3) {
+                    @Override
+                    public void migrate(SQLiteDatabase database) {
+                        database.execSQL("NOT SQL");
+                    }
+                });
+
+        try {
+            migrator.migrate(mDatabase, 1, 3);
+            fail("Expected the migration to fail");
+        } catch (RuntimeException e) {
+            // Expected.
+        }
+        assertFalse(getSchemaNames("table").contains("Extra"));
+    }
+
+    private void upgrade() {
+        CmHomeDatabaseHelper.getSchemaMigrator().migrate(mDatabase, 1, CURRENT_VERSION);
+    }
+
+    private List<Long> search(String query) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = mDatabase.rawQuery("SELECT docid FROM DataCardSearch WHERE " +
+                                           "DataCardSearch MATCH ? ORDER BY docid",
+                                           new String[]{query});
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    private List<String> getColumns(String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = mDatabase.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndexOrThrow("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    private String getColumnType(String table, String column) {
+        Cursor cursor = mDatabase.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(cursor.getColumnIndexOrThrow("name")))) {
+                    return cursor.getString(cursor.getColumnIndexOrThrow("type"));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    private Set<String> getSchemaNames(String type) {
+        Set<String> names = new TreeSet<String>();
+        // Indexes SQLite creates on its own are not part of the schema.
+        Cursor cursor = mDatabase.rawQuery("SELECT name FROM sqlite_master WHERE type = ? " +
+                                           "AND name NOT LIKE 'sqlite_%'",
+                                           new String[]{type});
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Returns the type, name and definition of everything in the database, with the columns
+     * of each table.
+     */
+    private static Set<String> getSchema(SQLiteDatabase database) {
+        Set<String> schema = new TreeSet<String>();
+        Cursor cursor = database.rawQuery("SELECT type, name, sql FROM sqlite_master", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1));
+                if ("table".equals(cursor.getString(0))) {
+                    Cursor columns = database.rawQuery(
+                            "PRAGMA table_info(" + cursor.getString(1) + ")", null);
+                    try {
+                        while (columns.moveToNext()) {
+                            schema.add(cursor.getString(1) + "." + columns.getString(1) + " " +
+                                       columns.getString(2) + " " + columns.getString(3) +
+                                       " " + columns.getString(4));
+                        }
+                    } finally {
+                        columns.close();
+                    }
+                } else if (cursor.getString(2) != null) {
+                    schema.add(cursor.getString(2));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+}
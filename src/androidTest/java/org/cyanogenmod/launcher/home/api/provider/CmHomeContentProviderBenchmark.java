@@ -0,0 +1,331 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import org.cyanogenmod.launcher.home.api.cards.DataCard;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the provider's and the SDK's hot paths at 100 to 100,000 cards, each size on a new
+ * database, and the latency of reads while cards are written. Each run writes its timings,
+ * along with the provider's own metrics, as JSON to cmhome-benchmark-[name].json in the test
+ * package's external files directory, and to the log, so that the runs of two builds can be
+ * compared.
+ */
+@LargeTest
+public class CmHomeContentProviderBenchmark extends ProviderTestCase2<CmHomeContentProvider> {
+    private static final String TAG = "CmHomeBenchmark";
+
+    private ContentResolver mResolver;
+
+    public CmHomeContentProviderBenchmark() {
+        super(CmHomeContentProvider.class, CmHomeContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testBenchmark100Cards() throws Exception {
+        runBenchmark(100);
+    }
+
+    public void testBenchmark1000Cards() throws Exception {
+        runBenchmark(1000);
+    }
+
+    public void testBenchmark10000Cards() throws Exception {
+        runBenchmark(10000);
+    }
+
+    public void testBenchmark100000Cards() throws Exception {
+        runBenchmark(100000);
+    }
+
+    /**
+     * Measures the latency of reading the cards with and without a publisher writing batches
+     * of cards at the same time. With write-ahead logging, reads do not wait for the writes,
+     * so both should be close.
+     */
+    public void testReadLatencyUnderWriteLoad() throws Exception {
+        final int cardCount = 1000;
+        final int readCount = 500;
+        ContentValues[] cards = new ContentValues[cardCount];
+        for (int i = 0; i < cardCount; i++) {
+            cards[i] = createCardValues(i, "Bulk inserted");
+        }
+        assertEquals(cardCount, mResolver.bulkInsert(CmHomeContract.DataCard.CONTENT_URI, cards));
+        final List<Long> ids = queryCardIds();
+        mResolver.call(CmHomeContract.CONTENT_URI, CmHomeContract.METHOD_RESET_METRICS, null,
+                       null);
+
+        JSONObject results = new JSONObject();
+        results.put("cards", cardCount);
+        results.put("idle", measureReadLatencies(cardCount, readCount));
+
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicInteger batchCount = new AtomicInteger();
+        final AtomicReference<Exception> writeError = new AtomicReference<Exception>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // Upserts batches of 100 cards, as a sync of a publisher would.
+                try {
+                    for (int batch = 0; !stopped.get(); batch++) {
+                        ArrayList<ContentProviderOperation> operations =
+                                new ArrayList<ContentProviderOperation>();
+                        for (int i = 0; i < 100; i++) {
+                            int index = (batch * 100 + i) % cardCount;
+                            operations.add(ContentProviderOperation
+                                    .newInsert(getCardUri(ids.get(index)))
+                                    .withValues(createCardValues(index, "Synced " + batch))
+                                    .build());
+                        }
+                        mResolver.applyBatch(CmHomeContract.AUTHORITY, operations);
+                        batchCount.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    writeError.set(e);
+                }
+            }
+        }, TAG + " writer");
+        writer.start();
+        try {
+            results.put("under_write_load", measureReadLatencies(cardCount, readCount));
+        } finally {
+            stopped.set(true);
+            writer.join();
+        }
+        if (writeError.get() != null) {
+            throw writeError.get();
+        }
+        results.put("write_batches", batchCount.get());
+
+        writeResults("read-under-write", results);
+    }
+
+    /**
+     * Reads all cards repeatedly, as CM Home does when it refreshes.
+     * @return The median, 90th and 99th percentile and maximum latencies, in nanoseconds.
+     */
+    private JSONObject measureReadLatencies(int cardCount, int readCount) throws JSONException {
+        long[] latencies = new long[readCount];
+        for (int i = 0; i < readCount; i++) {
+            long startNanos = System.nanoTime();
+            assertEquals(cardCount, readAll(mResolver.query(CmHomeContract.DataCard.CONTENT_URI,
+                                                            CmHomeContract.DataCard.PROJECTION_ALL,
+                                                            null, null, null)));
+            latencies[i] = System.nanoTime() - startNanos;
+        }
+        Arrays.sort(latencies);
+
+        JSONObject result = new JSONObject();
+        result.put("reads", readCount);
+        result.put("p50_nanos", latencies[readCount / 2]);
+        result.put("p90_nanos", latencies[readCount * 9 / 10]);
+        result.put("p99_nanos", latencies[readCount * 99 / 100]);
+        result.put("max_nanos", latencies[readCount - 1]);
+        return result;
+    }
+
+    private void runBenchmark(int cardCount) throws Exception {
+        mResolver.call(CmHomeContract.CONTENT_URI, CmHomeContract.METHOD_RESET_METRICS, null,
+                       null);
+        JSONObject timings = new JSONObject();
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < cardCount; i++) {
+            assertNotNull(mResolver.insert(CmHomeContract.DataCard.CONTENT_URI,
+                                           createCardValues(i, "Inserted")));
+        }
+        putTiming(timings, "insert", startNanos, cardCount);
+
+        mResolver.delete(CmHomeContract.DataCard.CONTENT_URI, null, null);
+
+        ContentValues[] cards = new ContentValues[cardCount];
+        for (int i = 0; i < cardCount; i++) {
+            cards[i] = createCardValues(i, "Bulk inserted");
+        }
+        startNanos = System.nanoTime();
+        assertEquals(cardCount, mResolver.bulkInsert(CmHomeContract.DataCard.CONTENT_URI, cards));
+        putTiming(timings, "bulk_insert", startNanos, cardCount);
+
+        List<Long> ids = queryCardIds();
+        assertEquals(cardCount, ids.size());
+
+        ContentValues[] images = new ContentValues[cardCount];
+        for (int i = 0; i < cardCount; i++) {
+            images[i] = new ContentValues();
+            images[i].put(CmHomeContract.DataCardImage.DATA_CARD_ID_COL, ids.get(i));
+            images[i].put(CmHomeContract.DataCardImage.IMAGE_URI_COL,
+                          "http://example.com/images/" + i + ".png");
+        }
+        startNanos = System.nanoTime();
+        assertEquals(cardCount,
+                     mResolver.bulkInsert(CmHomeContract.DataCardImage.CONTENT_URI, images));
+        putTiming(timings, "bulk_insert_images", startNanos, cardCount);
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < cardCount; i++) {
+            ContentValues values = new ContentValues();
+            values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, "Updated " + i);
+            assertEquals(1, mResolver.update(getCardUri(ids.get(i)), values, null, null));
+        }
+        putTiming(timings, "update", startNanos, cardCount);
+
+        startNanos = System.nanoTime();
+        for (int i = 0; i < cardCount; i++) {
+            assertNotNull(mResolver.insert(getCardUri(ids.get(i)),
+                                           createCardValues(i, "Upserted")));
+        }
+        putTiming(timings, "upsert", startNanos, cardCount);
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(cardCount);
+        for (int i = 0; i < cardCount; i++) {
+            operations.add(ContentProviderOperation.newInsert(getCardUri(ids.get(i)))
+                                                   .withValues(createCardValues(i, "Batched"))
+                                                   .build());
+        }
+        startNanos = System.nanoTime();
+        assertEquals(cardCount,
+                     mResolver.applyBatch(CmHomeContract.AUTHORITY, operations).length);
+        putTiming(timings, "batch_upsert", startNanos, cardCount);
+
+        startNanos = System.nanoTime();
+        assertEquals(cardCount, readAll(mResolver.query(CmHomeContract.DataCard.CONTENT_URI,
+                                                        CmHomeContract.DataCard.PROJECTION_ALL,
+                                                        null, null, null)));
+        putTiming(timings, "list_query", startNanos, cardCount);
+
+        startNanos = System.nanoTime();
+        assertEquals(cardCount, readAll(mResolver.query(
+                CmHomeContract.DataCard.WITH_IMAGES_URI, null, null, null, null)));
+        putTiming(timings, "joined_query", startNanos, cardCount);
+
+        startNanos = System.nanoTime();
+        assertEquals(cardCount, DataCard.getAllPublishedDataCards(getMockContext()).size());
+        putTiming(timings, "materialize", startNanos, cardCount);
+
+        JSONObject results = new JSONObject();
+        results.put("cards", cardCount);
+        results.put("timings", timings);
+        writeResults(String.valueOf(cardCount), results);
+    }
+
+    private static ContentValues createCardValues(int index, String title) {
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCard.SUBJECT_COL, "benchmark");
+        values.put(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL,
+                   1400000000000L + index * 1000L);
+        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, title + " " + index);
+        values.put(CmHomeContract.DataCard.BODY_TEXT_COL,
+                   "The body text of card " + index + ", long enough to be realistic.");
+        values.put(CmHomeContract.DataCard.ACTION_1_TEXT_COL, "Open");
+        values.put(CmHomeContract.DataCard.ACTION_1_URI_COL, "http://example.com/" + index);
+        values.put(CmHomeContract.DataCard.PRIORITY_COL, 1 + index % 3);
+        return values;
+    }
+
+    private static Uri getCardUri(long id) {
+        return ContentUris.withAppendedId(CmHomeContract.DataCard.CONTENT_URI, id);
+    }
+
+    private List<Long> queryCardIds() {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor = mResolver.query(CmHomeContract.DataCard.CONTENT_URI,
+                                        new String[]{CmHomeContract.DataCard._ID}, null, null,
+                                        null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Reads every column of every row, as a caller building its own objects would.
+     * @return The number of rows read.
+     */
+    private static int readAll(Cursor cursor) {
+        int rows = 0;
+        try {
+            int columnCount = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                for (int i = 0; i < columnCount; i++) {
+                    cursor.getString(i);
+                }
+                rows++;
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static void putTiming(JSONObject timings, String name, long startNanos,
+                                  int cardCount) throws JSONException {
+        long nanos = System.nanoTime() - startNanos;
+        JSONObject timing = new JSONObject();
+        timing.put("total_nanos", nanos);
+        timing.put("nanos_per_card", nanos / cardCount);
+        timings.put(name, timing);
+    }
+
+    /**
+     * Adds the device and the provider's metrics to the results, and writes them to
+     * cmhome-benchmark-[name].json.
+     */
+    private void writeResults(String name, JSONObject results)
+            throws JSONException, IOException {
+        Bundle metrics = mResolver.call(CmHomeContract.CONTENT_URI,
+                                        CmHomeContract.METHOD_GET_METRICS,
+                                        CmHomeContract.METRICS_FORMAT_JSON, null);
+        results.put("device", Build.MODEL);
+        results.put("sdk_int", Build.VERSION.SDK_INT);
+        results.put("provider_metrics",
+                    new JSONObject(metrics.getString(CmHomeContract.KEY_METRICS_JSON)));
+        String json = results.toString();
+        Log.i(TAG, json);
+
+        File directory = getContext().getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getContext().getFilesDir();
+        }
+        File file = new File(directory, "cmhome-benchmark-" + name + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json);
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "Wrote " + file);
+    }
+}
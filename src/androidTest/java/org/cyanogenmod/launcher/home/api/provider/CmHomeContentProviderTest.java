@@ -0,0 +1,493 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.SmallTest;
+import org.cyanogenmod.launcher.home.api.cards.DataCard;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the behaviour of CmHomeContentProvider through a resolver, on a new database.
+ */
+@SmallTest
+public class CmHomeContentProviderTest extends ProviderTestCase2<CmHomeContentProvider> {
+    private static final long TIMEOUT_MS = 5000;
+
+    private ContentResolver mResolver;
+
+    public CmHomeContentProviderTest() {
+        super(CmHomeContentProvider.class, CmHomeContract.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getMockContentResolver();
+    }
+
+    public void testChangesIncludeDeletedCards() {
+        long deleted = insertCard(1);
+        long kept = insertCard(2);
+        assertEquals(1, mResolver.delete(getCardUri(deleted), null, null));
+
+        Map<Long, Integer> changes = new HashMap<Long, Integer>();
+        Cursor cursor = mResolver.query(CmHomeContract.DataCard.CHANGES_URI,
+                                        new String[]{CmHomeContract.DataCard._ID,
+                                                     CmHomeContract.DELETED_COL},
+                                        null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                changes.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(2, changes.size());
+        assertEquals(Integer.valueOf(1), changes.get(deleted));
+        assertEquals(Integer.valueOf(0), changes.get(kept));
+    }
+
+    public void testWriteWaitingForLockGetsLaterToken() throws Exception {
+        final long waiting = insertCard(1);
+        final ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, "changed");
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                mResolver.update(getCardUri(waiting), values, null, null);
+            }
+        };
+
+        // The update waits for the transaction of this thread, which writes another card.
+        SQLiteDatabase db = getProvider().mCmHomeDatabaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            writer.start();
+            SystemClock.sleep(100);
+            insertCard(2);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // A consumer that read the changes up to now still gets the update, however the
+        // writes interleave with the read.
+        long token = queryMaxChangeToken(CmHomeContract.DataCard.CHANGES_URI);
+        writer.join(TIMEOUT_MS);
+        assertFalse(writer.isAlive());
+        assertEquals("changed", queryString(waiting, CmHomeContract.DataCard.TITLE_TEXT_COL));
+        Uri changesUri = CmHomeContract.buildChangesUri(CmHomeContract.DataCard.CHANGES_URI,
+                                                        String.valueOf(token));
+        assertTrue(queryIds(changesUri).contains(waiting));
+    }
+
+    public void testOutdatedTokenReturnsEveryRow() {
+        long id = insertCard(1);
+        long outdated = System.currentTimeMillis() - CmHomeContract.TOMBSTONE_RETENTION_MILLIS -
+                        1000;
+        Cursor cursor = mResolver.query(
+                CmHomeContract.buildChangesUri(CmHomeContract.DataCard.CHANGES_URI,
+                                               String.valueOf(outdated)),
+                new String[]{CmHomeContract.DataCard._ID}, null, null, null);
+        try {
+            assertTrue(cursor.getExtras().getBoolean(CmHomeContract.EXTRA_RESYNC));
+            assertTrue(cursor.moveToFirst());
+            assertEquals(id, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+        // A recent token is served from the tombstones.
+        long recent = System.currentTimeMillis() - 60 * 1000;
+        cursor = mResolver.query(
+                CmHomeContract.buildChangesUri(CmHomeContract.DataCard.CHANGES_URI,
+                                               String.valueOf(recent)),
+                new String[]{CmHomeContract.DataCard._ID}, null, null, null);
+        try {
+            assertFalse(cursor.getExtras().getBoolean(CmHomeContract.EXTRA_RESYNC));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public void testServesItemsFromRowCache() {
+        long id = insertCard("title", null, 1000);
+        assertEquals("title", queryString(id, CmHomeContract.DataCard.TITLE_TEXT_COL));
+        assertEquals("title", queryString(id, CmHomeContract.DataCard.TITLE_TEXT_COL));
+        assertRowCacheStats(1, 1);
+
+        // Writing the card evicts its row.
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, "changed");
+        assertEquals(1, mResolver.update(getCardUri(id), values, null, null));
+        assertEquals("changed", queryString(id, CmHomeContract.DataCard.TITLE_TEXT_COL));
+        assertRowCacheStats(1, 2);
+    }
+
+    public void testPrunesExpiredCards() {
+        ContentValues values = createCardValues(1000);
+        values.put(CmHomeContract.DataCard.EXPIRES_AT_COL, System.currentTimeMillis() - 1000);
+        insertCard(values);
+        long kept = insertCard(createCardValues(1000));
+
+        // Pruning runs in the background.
+        mResolver.call(CmHomeContract.CONTENT_URI, CmHomeContract.METHOD_PRUNE_CARDS, null,
+                       null);
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+        List<Long> ids = queryIds(CmHomeContract.DataCard.CONTENT_URI);
+        while (ids.size() > 1 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+            ids = queryIds(CmHomeContract.DataCard.CONTENT_URI);
+        }
+        assertEquals(Arrays.asList(kept), ids);
+    }
+
+    public void testPrunesCardsWithoutPriorityAsLowPriority() {
+        long kept = insertCard(2);
+        insertCard((Integer) null);
+
+        HandlerThread thread = new HandlerThread("CardPrunerTest");
+        thread.start();
+        try {
+            CardPruner pruner = new CardPruner(getProvider().mCmHomeDatabaseHelper,
+                                               new Handler(thread.getLooper()), 1,
+                                               new CardPruner.Callback() {
+                                                   @Override
+                                                   public void onCardsPruned() {
+                                                   }
+                                               });
+            pruner.schedule(0);
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT_MS;
+            List<Long> ids = queryIds(CmHomeContract.DataCard.CONTENT_URI);
+            while (ids.size() > 1 && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(10);
+                ids = queryIds(CmHomeContract.DataCard.CONTENT_URI);
+            }
+            assertEquals(Arrays.asList(kept), ids);
+        } finally {
+            thread.quit();
+        }
+    }
+
+    public void testOpensStoredImageUnderPublisherAuthority() throws Exception {
+        String authority = "org.example.publisher" + CmHomeContract.AUTHORITY_SUFFIX;
+        getMockContentResolver().addProvider(authority, getProvider());
+
+        byte[] imageData = {1, 2, 3, 4};
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCardImage.DATA_CARD_ID_COL, insertCard(1));
+        values.put(CmHomeContract.DataCardImage.IMAGE_DATA_COL, imageData);
+        Uri imageRowUri = mResolver.insert(
+                CmHomeContract.buildUriForAuthority(CmHomeContract.DataCardImage.CONTENT_URI,
+                                                    authority),
+                values);
+        assertNotNull(imageRowUri);
+
+        Cursor cursor = mResolver.query(imageRowUri,
+                                        new String[]{CmHomeContract.DataCardImage.IMAGE_URI_COL},
+                                        null, null, null);
+        Uri imageUri;
+        try {
+            assertTrue(cursor.moveToFirst());
+            imageUri = Uri.parse(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+        assertEquals(authority, imageUri.getAuthority());
+
+        ParcelFileDescriptor descriptor = mResolver.openFileDescriptor(imageUri, "r");
+        assertNotNull(descriptor);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+        try {
+            byte[] storedData = new byte[imageData.length + 1];
+            assertEquals(imageData.length, in.read(storedData));
+            assertTrue(Arrays.equals(imageData, Arrays.copyOf(storedData, imageData.length)));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testSkipsWriteWithUnchangedHash() {
+        ContentValues values = createCardValues(1000);
+        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, "title");
+        values.put(CmHomeContract.DataCard.CONTENT_HASH_COL,
+                   CmHomeContract.DataCard.computeContentHash(values));
+        Uri uri = getCardUri(1);
+        assertNotNull(mResolver.insert(uri, values));
+        String lastModified = queryString(1, CmHomeContract.DataCard.LAST_MODIFIED_COL);
+
+        SystemClock.sleep(10);
+        mResolver.insert(uri, values);
+        assertEquals(1, getUnchangedWriteCount());
+        assertEquals(lastModified,
+                     queryString(1, CmHomeContract.DataCard.LAST_MODIFIED_COL));
+
+        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, "changed");
+        values.put(CmHomeContract.DataCard.CONTENT_HASH_COL,
+                   CmHomeContract.DataCard.computeContentHash(values));
+        mResolver.insert(uri, values);
+        assertEquals(1, getUnchangedWriteCount());
+        assertEquals("changed", queryString(1, CmHomeContract.DataCard.TITLE_TEXT_COL));
+    }
+
+    public void testTopRanksByScore() {
+        long older = insertCard(createCardValues(1000));
+        long newer = insertCard(createCardValues(2000));
+        // A high priority card ranks like a card created a day later.
+        ContentValues values = createCardValues(500);
+        values.put(CmHomeContract.DataCard.PRIORITY_COL, 1);
+        long important = insertCard(values);
+
+        assertEquals(Arrays.asList(important, newer),
+                     queryIds(CmHomeContract.DataCard.buildTopUri(2)));
+        assertEquals(Arrays.asList(important, newer, older),
+                     queryIds(CmHomeContract.DataCard.TOP_URI));
+    }
+
+    public void testPagesInDefaultOrder() {
+        // Cards without a priority sort first, though DataCard reads them as PRIORITY_LOW.
+        long[] ids = {insertCard(3), insertCard(null), insertCard(1), insertCard(null),
+                      insertCard(3), insertCard(2)};
+        List<Long> expected = Arrays.asList(ids[1], ids[3], ids[2], ids[5], ids[0], ids[4]);
+
+        for (int pageSize = 1; pageSize <= ids.length + 1; pageSize++) {
+            List<Long> actual = new ArrayList<Long>();
+            Iterator<DataCard> cards = DataCard.iteratePublishedDataCards(getMockContext(),
+                                                                          pageSize);
+            while (cards.hasNext()) {
+                actual.add(cards.next().getId());
+            }
+            assertEquals("page size " + pageSize, expected, actual);
+        }
+    }
+
+    public void testPagesAfterCardWithoutPriority() {
+        long first = insertCard(null);
+        long second = insertCard(null);
+        long third = insertCard(0);
+
+        Uri uri = CmHomeContract.DataCard.buildPageUri(10, null, first);
+        assertEquals(Arrays.asList(second, third), queryIds(uri));
+    }
+
+    public void testRejectsInvalidPageSize() {
+        insertCard(1);
+        for (int pageSize : new int[]{0, -1}) {
+            try {
+                queryIds(CmHomeContract.DataCard.buildPageUri(pageSize));
+                fail("Page size " + pageSize + " was accepted");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    public void testRejectsInvalidLimits() {
+        insertCard(1);
+        for (String limit : new String[]{"0", "-1", "ten"}) {
+            Uri[] uris = {
+                    CmHomeContract.DataCard.TOP_URI.buildUpon()
+                            .appendQueryParameter(CmHomeContract.DataCard.PARAM_LIMIT, limit)
+                            .build(),
+                    CmHomeContract.DataCard.buildSearchUri("subject", false).buildUpon()
+                            .appendQueryParameter(CmHomeContract.DataCard.PARAM_LIMIT, limit)
+                            .build(),
+                    CmHomeContract.DataCard.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(CmHomeContract.DataCard.PARAM_PAGE_SIZE, limit)
+                            .build()};
+            for (Uri uri : uris) {
+                try {
+                    queryIds(uri);
+                    fail("Limit " + limit + " was accepted: " + uri);
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+            }
+        }
+    }
+
+    public void testListUpdateRecomputesScores() {
+        long updated = insertCard(3);
+        long other = insertCard(3);
+        long otherScore = queryScore(other);
+
+        // The selection no longer matches the card once it is updated.
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCard.PRIORITY_COL, 1);
+        assertEquals(1, mResolver.update(CmHomeContract.DataCard.CONTENT_URI, values,
+                                         CmHomeContract.DataCard._ID + " = ? AND " +
+                                         CmHomeContract.DataCard.PRIORITY_COL + " = 3",
+                                         new String[]{String.valueOf(updated)}));
+
+        // A high priority card ranks like a card created a day later.
+        assertEquals(queryLong(updated, CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL) +
+                     24 * 60 * 60 * 1000, queryScore(updated));
+        assertEquals(otherScore, queryScore(other));
+    }
+
+    public void testCancelledQueryThrows() {
+        insertCard(1);
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        cancellationSignal.cancel();
+        try {
+            mResolver.query(CmHomeContract.DataCard.CONTENT_URI, null, null, null, null,
+                            cancellationSignal);
+            fail("A cancelled query ran");
+        } catch (OperationCanceledException e) {
+            // Expected
+        }
+    }
+
+    public void testRecordsBatchAsOneTransaction() throws Exception {
+        mResolver.call(CmHomeContract.CONTENT_URI, CmHomeContract.METHOD_RESET_METRICS, null,
+                       null);
+
+        // Inserts on item uris are upserts, which run in a transaction of their own.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int id = 1; id <= 2; id++) {
+            operations.add(ContentProviderOperation
+                    .newInsert(getCardUri(id))
+                    .withValue(CmHomeContract.DataCard.SUBJECT_COL, "subject")
+                    .withValue(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL,
+                               System.currentTimeMillis())
+                    .build());
+        }
+        mResolver.applyBatch(CmHomeContract.AUTHORITY, operations);
+
+        Bundle metrics = mResolver.call(CmHomeContract.CONTENT_URI,
+                                        CmHomeContract.METHOD_GET_METRICS, null, null);
+        Bundle transactions = metrics.getBundle(CmHomeContract.KEY_METRICS_TRANSACTIONS);
+        assertEquals(1, transactions.getLong(CmHomeContract.KEY_METRICS_COUNT));
+        assertEquals(2, transactions.getLong(CmHomeContract.KEY_METRICS_ROWS));
+        Bundle batches = metrics.getBundle("apply_batch");
+        assertEquals(1, batches.getLong(CmHomeContract.KEY_METRICS_COUNT));
+        assertEquals(2, batches.getLong(CmHomeContract.KEY_METRICS_ROWS));
+        // The reset is counted, while the call returning the metrics is not yet.
+        assertEquals(1, metrics.getBundle("call").getLong(CmHomeContract.KEY_METRICS_COUNT));
+    }
+
+    public void testSearchRanksByMatchCount() {
+        long once = insertCard("Rain tomorrow", "Take an umbrella", 2000);
+        long twice = insertCard("Rain", "Heavy rainfall in the afternoon", 1000);
+        insertCard("Sunshine", "Clear skies", 3000);
+
+        // Matches ignore the case of ASCII letters; more matches rank before a higher score.
+        assertEquals(Arrays.asList(twice, once),
+                     queryIds(CmHomeContract.DataCard.buildSearchUri("RAIN", false)));
+    }
+
+    private long insertCard(String title, String bodyText, long contentCreated) {
+        ContentValues values = createCardValues(contentCreated);
+        values.put(CmHomeContract.DataCard.TITLE_TEXT_COL, title);
+        values.put(CmHomeContract.DataCard.BODY_TEXT_COL, bodyText);
+        return insertCard(values);
+    }
+
+    private long insertCard(Integer priority) {
+        ContentValues values = createCardValues(System.currentTimeMillis());
+        values.put(CmHomeContract.DataCard.PRIORITY_COL, priority);
+        return insertCard(values);
+    }
+
+    private long insertCard(ContentValues values) {
+        Uri uri = mResolver.insert(CmHomeContract.DataCard.CONTENT_URI, values);
+        assertNotNull(uri);
+        return Long.parseLong(uri.getLastPathSegment());
+    }
+
+    private static ContentValues createCardValues(long contentCreated) {
+        ContentValues values = new ContentValues();
+        values.put(CmHomeContract.DataCard.SUBJECT_COL, "subject");
+        values.put(CmHomeContract.DataCard.DATE_CONTENT_CREATED_COL, contentCreated);
+        return values;
+    }
+
+    private static Uri getCardUri(long id) {
+        return ContentUris.withAppendedId(CmHomeContract.DataCard.CONTENT_URI, id);
+    }
+
+    private long getUnchangedWriteCount() {
+        Bundle stats = mResolver.call(CmHomeContract.CONTENT_URI,
+                                      CmHomeContract.METHOD_GET_WRITE_STATS, null, null);
+        return stats.getLong(CmHomeContract.KEY_WRITES_UNCHANGED);
+    }
+
+    private void assertRowCacheStats(long hits, long misses) {
+        Bundle stats = mResolver.call(CmHomeContract.CONTENT_URI,
+                                      CmHomeContract.METHOD_GET_ROW_CACHE_STATS, null, null);
+        assertEquals(hits, stats.getLong(CmHomeContract.KEY_ROW_CACHE_HITS));
+        assertEquals(misses, stats.getLong(CmHomeContract.KEY_ROW_CACHE_MISSES));
+    }
+
+    private long queryScore(long id) {
+        return queryLong(id, CmHomeContract.DataCard.SCORE_COL);
+    }
+
+    private long queryLong(long id, String column) {
+        Cursor cursor = mResolver.query(getCardUri(id), new String[]{column}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryString(long id, String column) {
+        Cursor cursor = mResolver.query(getCardUri(id), new String[]{column}, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long queryMaxChangeToken(Uri changesUri) {
+        Cursor cursor = mResolver.query(changesUri,
+                                        new String[]{CmHomeContract.CHANGE_TOKEN_COL}, null,
+                                        null, null);
+        try {
+            assertTrue(cursor.moveToLast());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Long> queryIds(Uri uri) {
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cursor =
+                mResolver.query(uri, new String[]{CmHomeContract.DataCard._ID}, null, null,
+                                null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+}
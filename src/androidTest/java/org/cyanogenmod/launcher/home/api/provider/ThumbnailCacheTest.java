@@ -0,0 +1,102 @@
+package org.cyanogenmod.launcher.home.api.provider;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Generates thumbnails of an in-memory image, in a directory of their own.
+ */
+@SmallTest
+public class ThumbnailCacheTest extends AndroidTestCase {
+    private File   mDirectory;
+    private byte[] mImageData;
+    private int    mOpenCount;
+
+    private final ThumbnailCache.Source mSource = new ThumbnailCache.Source() {
+        @Override
+        public InputStream open() throws IOException {
+            mOpenCount++;
+            return new ByteArrayInputStream(mImageData);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "ThumbnailCacheTest");
+        deleteRecursively(mDirectory);
+
+        Bitmap image = Bitmap.createBitmap(1000, 500, Bitmap.Config.RGB_565);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.PNG, 100, out);
+        image.recycle();
+        mImageData = out.toByteArray();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mDirectory);
+        super.tearDown();
+    }
+
+    public void testRoundsSizesUpToBuckets() {
+        assertEquals(64, ThumbnailCache.getBucketSize(1));
+        assertEquals(64, ThumbnailCache.getBucketSize(64));
+        assertEquals(128, ThumbnailCache.getBucketSize(65));
+        assertEquals(256, ThumbnailCache.getBucketSize(200));
+        assertEquals(CmHomeContract.DataCardImage.MAX_THUMBNAIL_SIZE,
+                     ThumbnailCache.getBucketSize(257));
+        assertEquals(CmHomeContract.DataCardImage.MAX_THUMBNAIL_SIZE,
+                     ThumbnailCache.getBucketSize(10000));
+    }
+
+    public void testScalesLongestSideToBucketSize() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDirectory, Long.MAX_VALUE);
+        File thumbnail = cache.getThumbnail("image", 128, mSource);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(thumbnail.getPath(), options);
+        assertEquals(128, options.outWidth);
+        assertEquals(64, options.outHeight);
+    }
+
+    public void testEvictsLeastRecentlyUsedThumbnails() throws IOException {
+        // Thumbnails of the same image at the same size all take up the same space.
+        long thumbnailBytes = new ThumbnailCache(new File(mDirectory, "sizing"), Long.MAX_VALUE)
+                .getThumbnail("sizing", 64, mSource).length();
+        ThumbnailCache cache = new ThumbnailCache(new File(mDirectory, "cache"),
+                                                  thumbnailBytes * 2);
+        File first = cache.getThumbnail("first", 64, mSource);
+        File second = cache.getThumbnail("second", 64, mSource);
+
+        // Using the first thumbnail again serves it from the cache, and leaves the second
+        // as the least recently used one.
+        int openCount = mOpenCount;
+        assertEquals(first, cache.getThumbnail("first", 64, mSource));
+        assertEquals(openCount, mOpenCount);
+
+        File third = cache.getThumbnail("third", 64, mSource);
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertTrue(third.exists());
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}